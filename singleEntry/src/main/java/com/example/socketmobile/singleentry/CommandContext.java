@@ -17,8 +17,11 @@ package com.example.socketmobile.singleentry;
 
 import com.socketmobile.scanapi.ISktScanDevice;
 import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.ISktScanProperty;
 import com.socketmobile.scanapi.SktScanErrors;
 
+import java.util.ArrayList;
+
 /**
  * ICommandContextCallback defines the interface for
  * a Command complete callback. The ScanObj passed as input
@@ -30,13 +33,22 @@ interface ICommandContextCallback {
     void run(ISktScanObject scanObj);
 }
 
+/**
+ * IDeviceReadCallback is the callback of a Get that must read the value from the device itself,
+ * such as the Gets capturing or verifying a profile, so the Get is never answered from the
+ * property cache
+ */
+interface IDeviceReadCallback extends ICommandContextCallback {
+}
+
 /**
  * CommandContext is a class that allows the application
  * to stack up the commands that need to be sent to the device
  * and when a command sent is completed it calls the callback.
  *
- * Only one command can be sent at a time. Before sending the
- * next command the previous one must be first completed.
+ * Only one command can be sent at a time to a device. Before
+ * sending the next command to this device the previous one
+ * must be first completed.
  */
 class CommandContext {
 
@@ -46,6 +58,15 @@ class CommandContext {
 
     public static final int statusCompleted = 3;
 
+    // user actions waiting for the scanner response (confirmation, trigger...)
+    public static final int priorityInteractive = 0;
+
+    // changes of the scanner or ScanAPI configuration
+    public static final int priorityConfiguration = 1;
+
+    // information queries (symbology, battery, firmware...)
+    public static final int priorityBackground = 2;
+
     private ICommandContextCallback _callback = null;
 
     private boolean _getOperation = false;
@@ -62,8 +83,48 @@ class CommandContext {
 
     private int _symbologyId;
 
+    private int _priority;
+
+    private long _queuedTime;
+
+    private long _sentTime;
+
+    private boolean _timedOut;
+
+    // result of a command rejected by the queue without being sent
+    private long _rejectedResult;
+
+    private RetryPolicy _retryPolicy;
+
+    // System.nanoTime() before which the command must not be sent again
+    private long _notBefore;
+
+    // links of the CommandQueue list holding this command, so it can be removed in O(1)
+    CommandContext queuePrevious;
+
+    CommandContext queueNext;
+
+    Object queueList;
+
+    // commands coalesced into this one, they complete with its result
+    private ArrayList<CommandContext> _coalesced;
+
     public CommandContext(boolean getOperation, ISktScanObject scanObj, ISktScanDevice scanDevice,
             DeviceInfo deviceInfo, ICommandContextCallback callback) {
+        init(getOperation, scanObj, scanDevice, deviceInfo, callback);
+    }
+
+    /**
+     * an empty command for the ScanApiHelper pool, it must be initialized with init
+     */
+    CommandContext() {
+    }
+
+    /**
+     * initialize the command, a command coming from the pool is set as if it was new
+     */
+    void init(boolean getOperation, ISktScanObject scanObj, ISktScanDevice scanDevice,
+            DeviceInfo deviceInfo, ICommandContextCallback callback) {
         this._getOperation = getOperation;
         scanObj.getProperty().setContext(this);
         this._scanObj = scanObj;
@@ -73,6 +134,64 @@ class CommandContext {
         this._retries = 0;
         this._deviceInfo = deviceInfo;
         this._symbologyId = 0;
+        this._priority = getDefaultPriority(scanObj.getProperty().getID(), getOperation);
+        this._queuedTime = 0;
+        this._sentTime = 0;
+        this._timedOut = false;
+        this._rejectedResult = SktScanErrors.ESKT_NOERROR;
+        this._retryPolicy = null;
+        this._notBefore = 0;
+        if (this._coalesced != null) {
+            this._coalesced.clear();
+        }
+        this.queuePrevious = null;
+        this.queueNext = null;
+        this.queueList = null;
+    }
+
+    /**
+     * drop the references this command holds before going back to the pool
+     */
+    void clear() {
+        _scanObj = null;
+        _callback = null;
+        _scanDevice = null;
+        _deviceInfo = null;
+        _retryPolicy = null;
+        if (_coalesced != null) {
+            _coalesced.clear();
+        }
+    }
+
+    /**
+     * retrieve the commands coalesced into this one, if any
+     */
+    ArrayList<CommandContext> getCoalesced() {
+        return _coalesced;
+    }
+
+    /**
+     * retrieve the priority of a command depending on its property
+     */
+    public static int getDefaultPriority(int propertyId, boolean getOperation) {
+        int priority = priorityConfiguration;
+        switch (propertyId) {
+            case ISktScanProperty.propId.kSktScanPropIdDataConfirmationDevice:
+            case ISktScanProperty.propId.kSktScanPropIdTriggerDevice:
+            case ISktScanProperty.propId.kSktScanPropIdOverlayViewDevice:
+                priority = priorityInteractive;
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdSymbologyDevice:
+            case ISktScanProperty.propId.kSktScanPropIdBatteryLevelDevice:
+            case ISktScanProperty.propId.kSktScanPropIdVersionDevice:
+            case ISktScanProperty.propId.kSktScanPropIdVersion:
+            case ISktScanProperty.propId.kSktScanPropIdCapabilitiesDevice:
+                if (getOperation) {
+                    priority = priorityBackground;
+                }
+                break;
+        }
+        return priority;
     }
 
     public boolean getOperation() {
@@ -108,6 +227,244 @@ class CommandContext {
         if (_callback != null) {
             _callback.run(scanObj);
         }
+        if (_coalesced != null) {
+            for (CommandContext command : _coalesced) {
+                command.doCallback(scanObj);
+            }
+        }
+    }
+
+    public ICommandContextCallback getCallback() {
+        return _callback;
+    }
+
+    /**
+     * the callback doesn't want the result anymore, the command is still sent for the commands
+     * coalesced into it
+     */
+    public void detachCallback() {
+        _callback = null;
+    }
+
+    public boolean hasCoalesced() {
+        return (_coalesced != null) && (!_coalesced.isEmpty());
+    }
+
+    /**
+     * attach a command to this one instead of sending it, its callback is called with the
+     * result of this command
+     */
+    public void addCoalesced(CommandContext command) {
+        if (_coalesced == null) {
+            _coalesced = new ArrayList<>();
+        }
+        _coalesced.add(command);
+    }
+
+    /**
+     * check if this command can be merged with a pending command instead of being sent: a Get
+     * is merged with a pending Get of the same property and with the same parameter, a Set
+     * replaces a pending Set of the same property. The commands that trigger an action on the
+     * device are always sent.
+     */
+    public boolean canCoalesceWith(CommandContext pending) {
+        ISktScanProperty property = _scanObj.getProperty();
+        ISktScanProperty pendingProperty = pending._scanObj.getProperty();
+        if ((_getOperation != pending._getOperation) ||
+                (_scanDevice != pending._scanDevice) ||
+                (property.getID() != pendingProperty.getID()) ||
+                (property.getType() != pendingProperty.getType())) {
+            return false;
+        }
+
+        switch (property.getID()) {
+            case ISktScanProperty.propId.kSktScanPropIdAbort:
+            case ISktScanProperty.propId.kSktScanPropIdDataConfirmationDevice:
+            case ISktScanProperty.propId.kSktScanPropIdTriggerDevice:
+            case ISktScanProperty.propId.kSktScanPropIdDisconnectDevice:
+            case ISktScanProperty.propId.kSktScanPropIdOverlayViewDevice:
+            case ISktScanProperty.propId.kSktScanPropIdProfileConfigDevice:
+                return false;
+        }
+
+        boolean same;
+        switch (property.getType()) {
+            case ISktScanProperty.types.kSktScanPropTypeNone:
+                same = true;
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeByte:
+                same = (!_getOperation) || (property.getByte() == pendingProperty.getByte());
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeUlong:
+                same = (!_getOperation) || (property.getUlong() == pendingProperty.getUlong());
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                same = property.getSymbology().getID() == pendingProperty.getSymbology().getID();
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeString:
+                same = sameStringKey(property, pendingProperty);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeArray:
+                same = sameArrayKey(property, pendingProperty);
+                break;
+            default:
+                same = false;
+                break;
+        }
+        return same;
+    }
+
+    /**
+     * compare the part of two string properties identifying what a Set changes, or the whole
+     * strings for a Get, by example the configuration name of a "name=value" ScanAPI
+     * configuration. The strings are compared in place since this runs for each pending command.
+     */
+    private boolean sameStringKey(ISktScanProperty property, ISktScanProperty other) {
+        String value = property.getString().getValue();
+        String otherValue = other.getString().getValue();
+        if (value == null) {
+            value = "";
+        }
+        if (otherValue == null) {
+            otherValue = "";
+        }
+        int length = getStringKeyLength(property.getID(), value);
+        return (length == getStringKeyLength(other.getID(), otherValue)) &&
+                value.regionMatches(0, otherValue, 0, length);
+    }
+
+    private int getStringKeyLength(int propertyId, String value) {
+        int length = value.length();
+        if (!_getOperation) {
+            if (propertyId == ISktScanProperty.propId.kSktScanPropIdConfiguration) {
+                int equal = value.indexOf('=');
+                if (equal >= 0) {
+                    length = equal;
+                }
+            } else {
+                // the whole string is replaced (friendly name, postamble...)
+                length = 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * compare the part of two array properties identifying what a Set changes, or the whole
+     * arrays for a Get. The sound and timers configurations start with the sound or the timers
+     * they change, any other array Set is never replaced and has no key.
+     */
+    private boolean sameArrayKey(ISktScanProperty property, ISktScanProperty other) {
+        int length = getArrayKeyLength(property);
+        if ((length < 0) || (length != getArrayKeyLength(other))) {
+            return false;
+        }
+        char[] value = property.getArray().getValue();
+        char[] otherValue = other.getArray().getValue();
+        for (int i = 0; i < length; i++) {
+            if (value[i] != otherValue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the length of the key of an array property, -1 if it has no key
+     */
+    private int getArrayKeyLength(ISktScanProperty property) {
+        char[] value = property.getArray().getValue();
+        int length = value != null ? Math.min(property.getArray().getLength(), value.length) : 0;
+        if (!_getOperation) {
+            switch (property.getID()) {
+                case ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice:
+                case ISktScanProperty.propId.kSktScanPropIdTimersDevice:
+                    length = Math.min(length, 2);
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return length;
+    }
+
+    public int getPriority() {
+        return _priority;
+    }
+
+    public void setPriority(int priority) {
+        _priority = priority;
+    }
+
+    /**
+     * System.nanoTime() when the command has been added in the queue
+     */
+    public long getQueuedTime() {
+        return _queuedTime;
+    }
+
+    public void setQueuedTime(long queuedTime) {
+        _queuedTime = queuedTime;
+    }
+
+    /**
+     * System.nanoTime() when the command has been sent the last time
+     */
+    public long getSentTime() {
+        return _sentTime;
+    }
+
+    public void setSentTime(long sentTime) {
+        _sentTime = sentTime;
+    }
+
+    /**
+     * retry policy of this command, or null to use the ScanApiHelper one
+     */
+    public RetryPolicy getRetryPolicy() {
+        return _retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        _retryPolicy = retryPolicy;
+    }
+
+    public long getNotBefore() {
+        return _notBefore;
+    }
+
+    public void setNotBefore(long notBefore) {
+        _notBefore = notBefore;
+    }
+
+    /**
+     * check if the command can be sent now, a failed command waits for its retry delay
+     */
+    public boolean isReady(long now) {
+        return (_status == statusReady) && ((_notBefore == 0) || (now - _notBefore >= 0));
+    }
+
+    /**
+     * the completion of this command has not been received before its deadline
+     */
+    public boolean isTimedOut() {
+        return _timedOut;
+    }
+
+    public void setTimedOut() {
+        _timedOut = true;
+    }
+
+    /**
+     * the error of a command that has not been queued or has been dropped from the queue,
+     * ESKT_NOERROR otherwise
+     */
+    public long getRejectedResult() {
+        return _rejectedResult;
+    }
+
+    public void setRejectedResult(long result) {
+        _rejectedResult = result;
     }
 
     public void setSymbologyId(int symbology) {
@@ -118,27 +475,33 @@ class CommandContext {
         return _symbologyId;
     }
 
+    /**
+     * send the command to its device. The command is not modified once it has been sent, since
+     * its completion might be handled by another thread before this returns.
+     */
     public long DoGetOrSetProperty() {
         long result = SktScanErrors.ESKT_NOERROR;
         if (getScanDevice() == null) {
             result = SktScanErrors.ESKT_INVALIDPARAMETER;
         }
 
+        _retries++;
+        _status = statusNotCompleted;
         if (SktScanErrors.SKTSUCCESS(result)) {
             if (getOperation()) {
-                System.out.println("About to do a get for ID:0x" + Integer
-                        .toHexString(getScanObject().getProperty().getID()) + "\n");
+                if (Debug.isEnabled(Debug.kLevelTrace)) {
+                    System.out.println("About to do a get for ID:0x" + Integer
+                            .toHexString(getScanObject().getProperty().getID()) + "\n");
+                }
                 result = getScanDevice().GetProperty(getScanObject());
             } else {
-                System.out.println("About to do a set for ID:0x" + Integer
-                        .toHexString(getScanObject().getProperty().getID()) + "\n");
+                if (Debug.isEnabled(Debug.kLevelTrace)) {
+                    System.out.println("About to do a set for ID:0x" + Integer
+                            .toHexString(getScanObject().getProperty().getID()) + "\n");
+                }
                 result = getScanDevice().SetProperty(getScanObject());
             }
         }
-        _retries++;
-        if (SktScanErrors.SKTSUCCESS(result)) {
-            _status = statusNotCompleted;
-        }
         return result;
     }
 
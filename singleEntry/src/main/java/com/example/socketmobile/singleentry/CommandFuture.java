@@ -0,0 +1,453 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.SktScanErrors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * CommandFuture is the handle of a command result that will be available later.
+ *
+ * Its callback is given to one of the ScanApiHelper post methods, once the command has completed
+ * the future holds the command result and the value extracted from the ScanObject by its
+ * converter, since the ScanObject itself is released as soon as the callback returns.
+ *
+ * The futures can be chained with then, joined with allOf, cancelled and given a timeout. The
+ * listeners are called by the thread completing the future: the thread delivering the command
+ * callbacks, the timeout timer or the thread cancelling the future.
+ */
+public class CommandFuture<T> {
+
+    /**
+     * IConverter extracts the value of a completed command from its ScanObject
+     */
+    public interface IConverter<T> {
+
+        T convert(ISktScanObject scanObj);
+    }
+
+    /**
+     * IListener is notified once the future is done
+     */
+    public interface IListener<T> {
+
+        void onComplete(CommandFuture<T> future);
+    }
+
+    /**
+     * IContinuation starts the next operation of a chain with the value of the previous one
+     */
+    public interface IContinuation<T, R> {
+
+        /**
+         * @return the future of the next operation, or null if there is nothing more to do
+         */
+        CommandFuture<R> run(T value);
+    }
+
+    /**
+     * no value, only the result of the command matters
+     */
+    public static final IConverter<Void> NONE = new IConverter<Void>() {
+
+        @Override
+        public Void convert(ISktScanObject scanObj) {
+            return null;
+        }
+    };
+
+    public static final IConverter<Integer> BYTE = new IConverter<Integer>() {
+
+        @Override
+        public Integer convert(ISktScanObject scanObj) {
+            return (int) scanObj.getProperty().getByte();
+        }
+    };
+
+    public static final IConverter<Long> ULONG = new IConverter<Long>() {
+
+        @Override
+        public Long convert(ISktScanObject scanObj) {
+            return scanObj.getProperty().getUlong();
+        }
+    };
+
+    public static final IConverter<String> STRING = new IConverter<String>() {
+
+        @Override
+        public String convert(ISktScanObject scanObj) {
+            return scanObj.getProperty().getString().getValue();
+        }
+    };
+
+    public static final IConverter<char[]> ARRAY = new IConverter<char[]>() {
+
+        @Override
+        public char[] convert(ISktScanObject scanObj) {
+            char[] value = scanObj.getProperty().getArray().getValue();
+            int length = Math.min(scanObj.getProperty().getArray().getLength(), value.length);
+            char[] copy = new char[length];
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+    };
+
+    public static final IConverter<Integer> SYMBOLOGY_STATUS = new IConverter<Integer>() {
+
+        @Override
+        public Integer convert(ISktScanObject scanObj) {
+            return scanObj.getProperty().getSymbology().getStatus();
+        }
+    };
+
+    // shared by all the futures with a timeout
+    private static Timer _timeoutTimer;
+
+    private final IConverter<T> _converter;
+
+    private boolean _done;
+
+    private long _result;
+
+    private T _value;
+
+    private ArrayList<IListener<T>> _listeners;
+
+    // what to do when the future is cancelled or times out before its completion
+    private Runnable _onCancel;
+
+    private TimerTask _timeout;
+
+    // the helper sending the command, to check a wait doesn't block its consumer
+    private final ScanApiHelper _scanApiHelper;
+
+    private final ICommandContextCallback _callback = new ICommandContextCallback() {
+
+        @Override
+        public void run(ISktScanObject scanObj) {
+            if (!isDone()) {
+                long result = ScanApiHelper.getResult(scanObj);
+                T value = null;
+                if (SktScanErrors.SKTSUCCESS(result) && (_converter != null)) {
+                    value = _converter.convert(scanObj);
+                }
+                complete(result, value);
+            }
+        }
+    };
+
+    /**
+     * @param converter extracts the value from the ScanObject, null for no value
+     */
+    public CommandFuture(IConverter<T> converter) {
+        this(converter, null);
+    }
+
+    CommandFuture(IConverter<T> converter, ScanApiHelper scanApiHelper) {
+        _converter = converter;
+        _scanApiHelper = scanApiHelper;
+        _done = false;
+        _result = SktScanErrors.ESKT_NOERROR;
+    }
+
+    /**
+     * the callback to give to the post method sending the command
+     */
+    public ICommandContextCallback getCallback() {
+        return _callback;
+    }
+
+    public synchronized boolean isDone() {
+        return _done;
+    }
+
+    public synchronized boolean isSuccess() {
+        return _done && SktScanErrors.SKTSUCCESS(_result);
+    }
+
+    public synchronized boolean isCancelled() {
+        return _done && (_result == ScanApiHelper.ERROR_COMMAND_CANCELLED);
+    }
+
+    /**
+     * the command result, ESKT_NOERROR until the future is done
+     */
+    public synchronized long getResult() {
+        return _result;
+    }
+
+    /**
+     * the command value, null until the future has completed successfully
+     */
+    public synchronized T getValue() {
+        return _value;
+    }
+
+    /**
+     * complete the future, only the first completion is taken into account
+     *
+     * @return false if the future was already done
+     */
+    public boolean complete(long result, T value) {
+        ArrayList<IListener<T>> listeners;
+        synchronized (this) {
+            if (_done) {
+                return false;
+            }
+            _done = true;
+            _result = result;
+            _value = value;
+            listeners = _listeners;
+            _listeners = null;
+            _onCancel = null;
+            if (_timeout != null) {
+                _timeout.cancel();
+                _timeout = null;
+            }
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (IListener<T> listener : listeners) {
+                listener.onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * await
+     *
+     * block the calling thread until the command has completed, this is meant for the worker
+     * threads that need a value from the scanner without any callback plumbing. If the command
+     * doesn't complete in time, the future completes with ScanApiHelper.ERROR_COMMAND_TIMEOUT
+     * and the command is removed from the queue if it hasn't been sent yet.
+     *
+     * This must not be called from the ScanAPI consumer nor from a command callback, since
+     * these threads deliver the completion the caller would wait for.
+     *
+     * @param timeout in milliseconds
+     * @return the command result, the value is then available with getValue
+     * @throws IllegalStateException if called from the ScanAPI consumer
+     */
+    public long await(long timeout) throws InterruptedException {
+        if ((_scanApiHelper != null) && (_scanApiHelper.isConsumerThread())) {
+            throw new IllegalStateException(
+                    "waiting for a command from the ScanAPI consumer would block it forever");
+        }
+        long deadline = System.nanoTime() + Math.max(0, timeout) * 1000000L;
+        synchronized (this) {
+            while (!_done) {
+                long remaining = (deadline - System.nanoTime() + 999999) / 1000000L;
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining);
+            }
+            if (_done) {
+                return _result;
+            }
+        }
+        abandon(ScanApiHelper.ERROR_COMMAND_TIMEOUT);
+        return getResult();
+    }
+
+    /**
+     * cancel the command, it is removed from the queue if it hasn't been sent yet
+     *
+     * @return false if the future was already done
+     */
+    public boolean cancel() {
+        return abandon(ScanApiHelper.ERROR_COMMAND_CANCELLED);
+    }
+
+    /**
+     * complete the future with ScanApiHelper.ERROR_COMMAND_TIMEOUT if it is not done in time,
+     * the command is then removed from the queue if it hasn't been sent yet
+     *
+     * @param timeout in milliseconds
+     */
+    public CommandFuture<T> setTimeout(long timeout) {
+        synchronized (this) {
+            if (!_done) {
+                if (_timeout != null) {
+                    _timeout.cancel();
+                }
+                _timeout = new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        abandon(ScanApiHelper.ERROR_COMMAND_TIMEOUT);
+                    }
+                };
+                getTimeoutTimer().schedule(_timeout, Math.max(0, timeout));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * call a listener once the future is done, right away if it is already done
+     */
+    public void addListener(IListener<T> listener) {
+        synchronized (this) {
+            if (!_done) {
+                if (_listeners == null) {
+                    _listeners = new ArrayList<>();
+                }
+                _listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * start another operation once this one has succeeded
+     *
+     * @return the future of the whole chain, it fails with the result of the first operation
+     * failing and cancelling it cancels the operation in progress
+     */
+    public <R> CommandFuture<R> then(final IContinuation<T, R> continuation) {
+        final CommandFuture<R> chain = new CommandFuture<>(null);
+        chain.setOnCancel(new Runnable() {
+
+            @Override
+            public void run() {
+                cancel();
+            }
+        });
+        addListener(new IListener<T>() {
+
+            @Override
+            public void onComplete(CommandFuture<T> future) {
+                if (!future.isSuccess()) {
+                    chain.complete(future.getResult(), null);
+                    return;
+                }
+                final CommandFuture<R> next = continuation.run(future.getValue());
+                if (next == null) {
+                    chain.complete(SktScanErrors.ESKT_NOERROR, null);
+                    return;
+                }
+                chain.setOnCancel(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        next.cancel();
+                    }
+                });
+                next.addListener(new IListener<R>() {
+
+                    @Override
+                    public void onComplete(CommandFuture<R> future) {
+                        chain.complete(future.getResult(), future.getValue());
+                    }
+                });
+            }
+        });
+        return chain;
+    }
+
+    /**
+     * join several futures, by example the same command sent to several devices
+     *
+     * @return a future done once all the futures are done. Its result is the result of the first
+     * future in the list that has failed or ESKT_NOERROR, its value is the list of the values
+     * in the same order. Cancelling it cancels all the futures.
+     */
+    public static CommandFuture<List<Object>> allOf(final CommandFuture<?>... futures) {
+        final CommandFuture<List<Object>> all = new CommandFuture<>(null);
+        all.setOnCancel(new Runnable() {
+
+            @Override
+            public void run() {
+                for (CommandFuture<?> future : futures) {
+                    future.cancel();
+                }
+            }
+        });
+        if (futures.length == 0) {
+            all.complete(SktScanErrors.ESKT_NOERROR, new ArrayList<>());
+            return all;
+        }
+        final int[] pending = {futures.length};
+        IListener<Object> listener = new IListener<Object>() {
+
+            @Override
+            public void onComplete(CommandFuture<Object> future) {
+                synchronized (pending) {
+                    if (--pending[0] > 0) {
+                        return;
+                    }
+                }
+                long result = SktScanErrors.ESKT_NOERROR;
+                List<Object> values = new ArrayList<>(futures.length);
+                for (CommandFuture<?> each : futures) {
+                    if (SktScanErrors.SKTSUCCESS(result) && !each.isSuccess()) {
+                        result = each.getResult();
+                    }
+                    values.add(each.getValue());
+                }
+                all.complete(result, values);
+            }
+        };
+        for (CommandFuture<?> future : futures) {
+            addAnyListener(future, listener);
+        }
+        return all;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addAnyListener(CommandFuture<?> future, IListener<Object> listener) {
+        ((CommandFuture<Object>) future).addListener(listener);
+    }
+
+    /**
+     * set what to do when the future is cancelled or times out, typically removing its command
+     * from the queue
+     */
+    synchronized void setOnCancel(Runnable onCancel) {
+        if (!_done) {
+            _onCancel = onCancel;
+        }
+    }
+
+    private boolean abandon(long result) {
+        Runnable onCancel;
+        synchronized (this) {
+            onCancel = _onCancel;
+        }
+        if (complete(result, null)) {
+            if (onCancel != null) {
+                onCancel.run();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static synchronized Timer getTimeoutTimer() {
+        if (_timeoutTimer == null) {
+            _timeoutTimer = new Timer("CommandFutureTimeout", true);
+        }
+        return _timeoutTimer;
+    }
+}
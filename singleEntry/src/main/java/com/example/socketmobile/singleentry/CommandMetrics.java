@@ -0,0 +1,567 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDevice;
+import com.socketmobile.scanapi.SktScanErrors;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CommandMetrics counts what happens to the commands of the ScanApiHelper queue, for each
+ * property ID and for each device, so the properties and the scanners slowing down the
+ * configuration can be found.
+ *
+ * For each command it measures the wait time, from the command being queued to the command
+ * being sent, and the service time, from the command being sent to its completion. The queue
+ * depth is sampled each time a command is queued or sent.
+ *
+ * The devices are identified by their GUID, so the statistics of a scanner are kept across its
+ * reconnections and the scanners sharing a same name are told apart.
+ */
+public class CommandMetrics {
+
+    /**
+     * identifier and name of the commands sent to ScanAPI itself
+     */
+    public static final String SCANAPI_NAME = "ScanAPI";
+
+    /**
+     * identifier and name of the commands of a device that is not known
+     */
+    public static final String UNKNOWN_NAME = "unknown";
+
+    /**
+     * Stats holds the counters and the histograms of a property or a device
+     */
+    public static class Stats {
+
+        // name of the device, null for a property
+        private String _name;
+
+        private long _added;
+
+        private long _coalesced;
+
+        private long _completed;
+
+        private long _failed;
+
+        private long _retries;
+
+        private long _timeouts;
+
+        private long _droppedNotSupported;
+
+        private long _droppedInvalidHandle;
+
+        private long _refused;
+
+        private long _cacheHits;
+
+        private long _cacheMisses;
+
+        private final LatencyHistogram _waitTime;
+
+        private final LatencyHistogram _serviceTime;
+
+        Stats() {
+            _waitTime = new LatencyHistogram();
+            _serviceTime = new LatencyHistogram();
+        }
+
+        Stats(Stats other) {
+            _name = other._name;
+            _added = other._added;
+            _coalesced = other._coalesced;
+            _completed = other._completed;
+            _failed = other._failed;
+            _retries = other._retries;
+            _timeouts = other._timeouts;
+            _droppedNotSupported = other._droppedNotSupported;
+            _droppedInvalidHandle = other._droppedInvalidHandle;
+            _refused = other._refused;
+            _cacheHits = other._cacheHits;
+            _cacheMisses = other._cacheMisses;
+            _waitTime = new LatencyHistogram(other._waitTime);
+            _serviceTime = new LatencyHistogram(other._serviceTime);
+        }
+
+        /**
+         * the last known name of the device, null for the statistics of a property
+         */
+        public String getName() {
+            return _name;
+        }
+
+        /**
+         * number of commands queued, including the ones coalesced with a pending command
+         */
+        public long getAdded() {
+            return _added;
+        }
+
+        public long getCoalesced() {
+            return _coalesced;
+        }
+
+        /**
+         * number of commands completed successfully
+         */
+        public long getCompleted() {
+            return _completed;
+        }
+
+        /**
+         * number of commands completed with an error once their retries were exhausted
+         */
+        public long getFailed() {
+            return _failed;
+        }
+
+        public long getRetries() {
+            return _retries;
+        }
+
+        public long getTimeouts() {
+            return _timeouts;
+        }
+
+        /**
+         * number of commands removed because the device doesn't support them
+         */
+        public long getDroppedNotSupported() {
+            return _droppedNotSupported;
+        }
+
+        /**
+         * number of commands removed because the device handle was invalid, usually because
+         * the device was gone
+         */
+        public long getDroppedInvalidHandle() {
+            return _droppedInvalidHandle;
+        }
+
+        /**
+         * number of commands refused or dropped because the queue was full
+         */
+        public long getRefused() {
+            return _refused;
+        }
+
+        /**
+         * number of Gets answered from the values the device returned before, each one is a
+         * round trip to the device saved
+         */
+        public long getCacheHits() {
+            return _cacheHits;
+        }
+
+        /**
+         * number of Gets of a cached property sent to the device since their value wasn't known
+         * or wasn't fresh anymore
+         */
+        public long getCacheMisses() {
+            return _cacheMisses;
+        }
+
+        /**
+         * time from the command being queued to the command being sent the first time
+         */
+        public LatencyHistogram getWaitTime() {
+            return _waitTime;
+        }
+
+        /**
+         * time from the command being sent to its completion
+         */
+        public LatencyHistogram getServiceTime() {
+            return _serviceTime;
+        }
+
+        @Override
+        public String toString() {
+            return "added=" + _added + " coalesced=" + _coalesced + " completed=" + _completed
+                    + " failed=" + _failed + " retries=" + _retries + " timeouts=" + _timeouts
+                    + " notSupported=" + _droppedNotSupported + " invalidHandle="
+                    + _droppedInvalidHandle + " refused=" + _refused + " cacheHits=" + _cacheHits
+                    + " cacheMisses=" + _cacheMisses + "\n    wait: " + _waitTime
+                    + "\n    service: " + _serviceTime;
+        }
+    }
+
+    /**
+     * PropertyStatsMap maps a property ID to its statistics with open addressing, so finding the
+     * statistics of a command doesn't box its property ID
+     */
+    private static class PropertyStatsMap {
+
+        private int[] _keys;
+
+        private Stats[] _values;
+
+        private int _size;
+
+        PropertyStatsMap() {
+            _keys = new int[32];
+            _values = new Stats[32];
+            _size = 0;
+        }
+
+        Stats get(int propertyId) {
+            int mask = _keys.length - 1;
+            for (int i = getSlot(propertyId, mask); _values[i] != null; i = (i + 1) & mask) {
+                if (_keys[i] == propertyId) {
+                    return _values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(int propertyId, Stats stats) {
+            // keep the table at most half full so the probe sequences stay short
+            if ((_size + 1) * 2 > _keys.length) {
+                int[] keys = _keys;
+                Stats[] values = _values;
+                _keys = new int[keys.length * 2];
+                _values = new Stats[values.length * 2];
+                _size = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (values[i] != null) {
+                        put(keys[i], values[i]);
+                    }
+                }
+            }
+            int mask = _keys.length - 1;
+            int i = getSlot(propertyId, mask);
+            while ((_values[i] != null) && (_keys[i] != propertyId)) {
+                i = (i + 1) & mask;
+            }
+            if (_values[i] == null) {
+                _size++;
+            }
+            _keys[i] = propertyId;
+            _values[i] = stats;
+        }
+
+        void clear() {
+            for (int i = 0; i < _values.length; i++) {
+                _values[i] = null;
+            }
+            _size = 0;
+        }
+
+        /**
+         * number of slots, the slots without statistics hold null
+         */
+        int getCapacity() {
+            return _keys.length;
+        }
+
+        int getKey(int slot) {
+            return _keys[slot];
+        }
+
+        Stats getValue(int slot) {
+            return _values[slot];
+        }
+
+        private static int getSlot(int propertyId, int mask) {
+            int hash = propertyId * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    /**
+     * Snapshot is a copy of the metrics at a given time, it doesn't change afterwards
+     */
+    public static class Snapshot {
+
+        private final TreeMap<Integer, Stats> _properties;
+
+        private final TreeMap<String, Stats> _devices;
+
+        private final LatencyHistogram _depth;
+
+        private final int _maxDepth;
+
+        Snapshot(CommandMetrics metrics) {
+            _properties = new TreeMap<>();
+            for (int i = 0; i < metrics._properties.getCapacity(); i++) {
+                Stats stats = metrics._properties.getValue(i);
+                if (stats != null) {
+                    _properties.put(metrics._properties.getKey(i), new Stats(stats));
+                }
+            }
+            _devices = new TreeMap<>();
+            for (Map.Entry<String, Stats> entry : metrics._devices.entrySet()) {
+                _devices.put(entry.getKey(), new Stats(entry.getValue()));
+            }
+            _depth = new LatencyHistogram(metrics._depth);
+            _maxDepth = metrics._maxDepth;
+        }
+
+        /**
+         * the statistics of each property, by ISktScanProperty.propId
+         */
+        public Map<Integer, Stats> getProperties() {
+            return _properties;
+        }
+
+        /**
+         * the statistics of each device, by device GUID, or SCANAPI_NAME for ScanAPI itself.
+         * Stats.getName gives the name of the device.
+         */
+        public Map<String, Stats> getDevices() {
+            return _devices;
+        }
+
+        /**
+         * the number of commands in the queue, sampled each time a command is queued or sent
+         */
+        public LatencyHistogram getDepth() {
+            return _depth;
+        }
+
+        public int getMaxDepth() {
+            return _maxDepth;
+        }
+
+        /**
+         * text dump of the metrics, one property or device per line
+         */
+        public String dump() {
+            StringBuilder text = new StringBuilder("Command queue: maxDepth=")
+                    .append(_maxDepth).append(" depth count=").append(_depth.getCount())
+                    .append(" p50=").append(_depth.getPercentile(50))
+                    .append(" p99=").append(_depth.getPercentile(99));
+            for (Map.Entry<Integer, Stats> entry : _properties.entrySet()) {
+                text.append("\n  property 0x").append(Integer.toHexString(entry.getKey()))
+                        .append(": ").append(entry.getValue());
+            }
+            for (Map.Entry<String, Stats> entry : _devices.entrySet()) {
+                text.append("\n  device ").append(entry.getValue().getName()).append(" (")
+                        .append(entry.getKey()).append("): ").append(entry.getValue());
+            }
+            return text.toString();
+        }
+    }
+
+    private final PropertyStatsMap _properties;
+
+    // statistics of each device by GUID
+    private final HashMap<String, Stats> _devices;
+
+    // statistics of the devices currently connected
+    private final IdentityHashMap<ISktScanDevice, Stats> _connectedDevices;
+
+    private final LatencyHistogram _depth;
+
+    private int _maxDepth;
+
+    public CommandMetrics() {
+        _properties = new PropertyStatsMap();
+        _devices = new HashMap<>();
+        _connectedDevices = new IdentityHashMap<>();
+        _depth = new LatencyHistogram();
+        _maxDepth = 0;
+    }
+
+    /**
+     * identify the commands of a device, its statistics are added to the ones it had the
+     * previous times it was connected
+     *
+     * @param guid GUID of the device, its name is used if it has no GUID
+     * @param name name of the device for the dump
+     */
+    synchronized void setDevice(ISktScanDevice device, String guid, String name) {
+        Stats stats = getDeviceStats(guid != null ? guid : name);
+        stats._name = name;
+        _connectedDevices.put(device, stats);
+    }
+
+    synchronized void removeDevice(ISktScanDevice device) {
+        _connectedDevices.remove(device);
+    }
+
+    /**
+     * a command has been queued
+     *
+     * @param coalesced true if it has been merged with a pending command
+     * @param depth     number of commands in the queue
+     */
+    synchronized void onAdded(CommandContext command, boolean coalesced, int depth) {
+        Stats property = getPropertyStats(command);
+        Stats device = getDeviceStats(command);
+        property._added++;
+        device._added++;
+        if (coalesced) {
+            property._coalesced++;
+            device._coalesced++;
+        }
+        recordDepth(depth);
+    }
+
+    /**
+     * a command is about to be sent, its completion might be handled before the send returns
+     *
+     * @param now   System.nanoTime()
+     * @param depth number of commands in the queue
+     */
+    synchronized void onSent(CommandContext command, long now, int depth) {
+        // the wait time of a retry would include the previous attempts
+        if ((command.getRetries() == 0) && (command.getQueuedTime() != 0)) {
+            long waited = (now - command.getQueuedTime()) / 1000;
+            getPropertyStats(command)._waitTime.record(waited);
+            getDeviceStats(command)._waitTime.record(waited);
+        }
+        recordDepth(depth);
+    }
+
+    /**
+     * a command couldn't be sent and has been removed from the queue
+     */
+    synchronized void onDropped(CommandContext command, long result) {
+        Stats property = getPropertyStats(command);
+        Stats device = getDeviceStats(command);
+        if (result == SktScanErrors.ESKT_NOTSUPPORTED) {
+            property._droppedNotSupported++;
+            device._droppedNotSupported++;
+        } else if (result == SktScanErrors.ESKT_INVALIDHANDLE) {
+            property._droppedInvalidHandle++;
+            device._droppedInvalidHandle++;
+        } else {
+            property._failed++;
+            device._failed++;
+        }
+    }
+
+    /**
+     * the completion of a command has been received
+     *
+     * @param retry true if the command failed and is going to be sent again
+     * @param now   System.nanoTime()
+     */
+    synchronized void onCompleted(CommandContext command, long result, boolean retry,
+            long now) {
+        Stats property = getPropertyStats(command);
+        Stats device = getDeviceStats(command);
+        if (command.getSentTime() != 0) {
+            long service = (now - command.getSentTime()) / 1000;
+            property._serviceTime.record(service);
+            device._serviceTime.record(service);
+        }
+        if (retry) {
+            property._retries++;
+            device._retries++;
+        } else if (SktScanErrors.SKTSUCCESS(result)) {
+            property._completed++;
+            device._completed++;
+        } else {
+            property._failed++;
+            device._failed++;
+        }
+    }
+
+    /**
+     * a command has been refused or dropped because the queue was full
+     */
+    synchronized void onRefused(CommandContext command) {
+        getPropertyStats(command)._refused++;
+        getDeviceStats(command)._refused++;
+    }
+
+    /**
+     * a Get has been answered from the cache instead of being queued
+     */
+    synchronized void onCacheHit(CommandContext command) {
+        getPropertyStats(command)._cacheHits++;
+        getDeviceStats(command)._cacheHits++;
+    }
+
+    synchronized void onCacheMiss(CommandContext command) {
+        getPropertyStats(command)._cacheMisses++;
+        getDeviceStats(command)._cacheMisses++;
+    }
+
+    synchronized void onTimedOut(CommandContext command) {
+        getPropertyStats(command)._timeouts++;
+        getDeviceStats(command)._timeouts++;
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    public synchronized void reset() {
+        _properties.clear();
+        for (Stats stats : _devices.values()) {
+            stats._added = 0;
+            stats._coalesced = 0;
+            stats._completed = 0;
+            stats._failed = 0;
+            stats._retries = 0;
+            stats._timeouts = 0;
+            stats._droppedNotSupported = 0;
+            stats._droppedInvalidHandle = 0;
+            stats._refused = 0;
+            stats._cacheHits = 0;
+            stats._cacheMisses = 0;
+            stats._waitTime.reset();
+            stats._serviceTime.reset();
+        }
+        _depth.reset();
+        _maxDepth = 0;
+    }
+
+    private void recordDepth(int depth) {
+        _depth.record(depth);
+        if (depth > _maxDepth) {
+            _maxDepth = depth;
+        }
+    }
+
+    private Stats getPropertyStats(CommandContext command) {
+        int propId = command.getScanObject().getProperty().getID();
+        Stats stats = _properties.get(propId);
+        if (stats == null) {
+            stats = new Stats();
+            _properties.put(propId, stats);
+        }
+        return stats;
+    }
+
+    private Stats getDeviceStats(CommandContext command) {
+        Stats stats = _connectedDevices.get(command.getScanDevice());
+        if (stats == null) {
+            stats = getDeviceStats(UNKNOWN_NAME);
+        }
+        return stats;
+    }
+
+    private Stats getDeviceStats(String guid) {
+        Stats stats = _devices.get(guid);
+        if (stats == null) {
+            stats = new Stats();
+            stats._name = guid;
+            _devices.put(guid, stats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDevice;
+import com.socketmobile.scanapi.ISktScanProperty;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * CommandQueue holds the commands waiting to be sent, with one lane per target: each connected
+ * device and ScanAPI itself.
+ *
+ * The commands of a lane are sent one at a time, the command in flight stays in the queue until
+ * its completion has been received. The lanes are independent from each other, so a slow device
+ * doesn't delay the commands sent to the other devices or to ScanAPI.
+ *
+ * Inside a lane the commands are ordered by priority (see CommandContext.priorityInteractive,
+ * priorityConfiguration and priorityBackground) and in the order they have been added for a same
+ * priority. A command waiting for longer than the aging period gains one priority level per
+ * period, so a constant flow of interactive commands can't starve the background queries.
+ *
+ * A Get identical to a Get not sent yet is not queued, it completes with the result of the
+ * pending one, unless a Set of the same property has been queued after the pending Get. A Set
+ * replaces a pending Set of the same property, taking its place in the queue, and the callback
+ * of the replaced Set is called with the result of the new one.
+ *
+ * A command that has failed stays in flight until its retry delay has passed, which delays only
+ * the commands of its own lane.
+ *
+ * The ScanAPI Abort command is the exception: adding it removes all the pending commands, and
+ * nothing else is sent until it has completed.
+ *
+ * The queue can be bounded, for each lane and for the whole queue. A command that would go over
+ * a capacity is not added, the caller decides what to do: reject it, make room by dropping the
+ * oldest background command, or wait for some room with waitForSpace.
+ *
+ * The commands are linked in intrusive lists, so appending a command to a lane, taking the next
+ * command of a lane and removing any command or a whole device are O(1) and don't allocate
+ * anything. A lane is kept once created, even when it is empty, until its device is removed,
+ * and the lanes are also kept in an array so going through them doesn't allocate an iterator.
+ * The other operations go through the commands:
+ * <ul>
+ * <li> add looks in the lane of the command for a pending command to coalesce with, it is
+ * O(lane) and bounded by the capacity of a lane when there is one
+ * <li> getReadyCommands and getNextRetryDelay go through the lanes, O(devices)
+ * <li> cancel looks for its callback in all the lanes, O(queue)
+ * </ul>
+ *
+ * The queue is not thread safe by itself, the caller synchronizes on it. The lock is held for
+ * these operations only, never while a command is sent or a callback is called.
+ */
+class CommandQueue {
+
+    public static final long defaultAgingPeriod = 2000;
+
+    /**
+     * results of add
+     */
+    public static final int addQueued = 0;
+
+    public static final int addCoalesced = 1;
+
+    public static final int addDeviceFull = 2;
+
+    public static final int addQueueFull = 3;
+
+    private static final int priorityCount = CommandContext.priorityBackground + 1;
+
+    /**
+     * doubly linked list of commands using the links of the commands themselves
+     */
+    private static class CommandList {
+
+        CommandContext first;
+
+        CommandContext last;
+
+        boolean isEmpty() {
+            return first == null;
+        }
+
+        void addLast(CommandContext command) {
+            command.queueList = this;
+            command.queuePrevious = last;
+            command.queueNext = null;
+            if (last != null) {
+                last.queueNext = command;
+            } else {
+                first = command;
+            }
+            last = command;
+        }
+
+        /**
+         * @return false if the command is not in this list
+         */
+        boolean remove(CommandContext command) {
+            if (command.queueList != this) {
+                return false;
+            }
+            if (command.queuePrevious != null) {
+                command.queuePrevious.queueNext = command.queueNext;
+            } else {
+                first = command.queueNext;
+            }
+            if (command.queueNext != null) {
+                command.queueNext.queuePrevious = command.queuePrevious;
+            } else {
+                last = command.queuePrevious;
+            }
+            command.queueList = null;
+            command.queuePrevious = null;
+            command.queueNext = null;
+            return true;
+        }
+
+        /**
+         * put a command at the place of another one
+         */
+        void replace(CommandContext command, CommandContext replacement) {
+            replacement.queueList = this;
+            replacement.queuePrevious = command.queuePrevious;
+            replacement.queueNext = command.queueNext;
+            if (command.queuePrevious != null) {
+                command.queuePrevious.queueNext = replacement;
+            } else {
+                first = replacement;
+            }
+            if (command.queueNext != null) {
+                command.queueNext.queuePrevious = replacement;
+            } else {
+                last = replacement;
+            }
+            command.queueList = null;
+            command.queuePrevious = null;
+            command.queueNext = null;
+        }
+    }
+
+    /**
+     * the commands of one target, one list per priority
+     */
+    private static class Lane {
+
+        final CommandList[] commands;
+
+        // command sent and waiting for its completion, or waiting to be sent again
+        CommandContext inFlight;
+
+        int size;
+
+        // a command has been refused since the last one added
+        boolean saturated;
+
+        Lane() {
+            commands = new CommandList[priorityCount];
+            for (int i = 0; i < priorityCount; i++) {
+                commands[i] = new CommandList();
+            }
+        }
+
+        /**
+         * @return the list if it belongs to this lane, null otherwise
+         */
+        CommandList getList(Object list) {
+            for (CommandList commandList : commands) {
+                if (commandList == list) {
+                    return commandList;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final IdentityHashMap<ISktScanDevice, Lane> _lanes;
+
+    // the lanes of _lanes, the first _laneCount items are used
+    private Lane[] _laneArray;
+
+    private int _laneCount;
+
+    private int _size;
+
+    // Abort command pending, if any
+    private CommandContext _abort;
+
+    private long _agingPeriodNanos;
+
+    // maximum number of commands of a lane and of the whole queue, 0 for no limit
+    private int _deviceCapacity;
+
+    private int _capacity;
+
+    private boolean _saturated;
+
+    // number of threads waiting for some room in the queue
+    private int _waiters;
+
+    public CommandQueue() {
+        _lanes = new IdentityHashMap<>();
+        _laneArray = new Lane[4];
+        _laneCount = 0;
+        _size = 0;
+        _abort = null;
+        setAgingPeriod(defaultAgingPeriod);
+        _deviceCapacity = 0;
+        _capacity = 0;
+        _saturated = false;
+        _waiters = 0;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * set how long a command waits before gaining one priority level
+     *
+     * @param agingPeriod in milliseconds
+     */
+    public void setAgingPeriod(long agingPeriod) {
+        _agingPeriodNanos = Math.max(1, agingPeriod) * 1000000L;
+    }
+
+    public long getAgingPeriod() {
+        return _agingPeriodNanos / 1000000L;
+    }
+
+    /**
+     * set the maximum number of commands, including the ones in flight. The commands already
+     * queued are kept even if they are over the new capacity.
+     *
+     * @param deviceCapacity maximum number of commands of a lane, 0 for no limit
+     * @param capacity       maximum number of commands of the whole queue, 0 for no limit
+     */
+    public void setCapacity(int deviceCapacity, int capacity) {
+        _deviceCapacity = Math.max(0, deviceCapacity);
+        _capacity = Math.max(0, capacity);
+        signalSpace();
+    }
+
+    public int getDeviceCapacity() {
+        return _deviceCapacity;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * number of commands of a target, including the one in flight
+     */
+    public int size(ISktScanDevice device) {
+        Lane lane = _lanes.get(device);
+        return lane != null ? lane.size : 0;
+    }
+
+    /**
+     * add a command at the end of the commands of its priority in the lane of its target, unless
+     * it can be coalesced with a pending command. A command coalesced is always accepted since it
+     * doesn't take any room.
+     *
+     * @return addQueued, addCoalesced, or addDeviceFull and addQueueFull if the command has not
+     * been added because its lane or the whole queue is at its capacity
+     */
+    public int add(CommandContext command) {
+        if (isAbort(command)) {
+            clear();
+            _abort = command;
+        }
+        command.setQueuedTime(System.nanoTime());
+        Lane lane = _lanes.get(command.getScanDevice());
+        if ((lane != null) && coalesce(lane, command)) {
+            return addCoalesced;
+        }
+        if ((lane != null) && (_deviceCapacity > 0) && (lane.size >= _deviceCapacity)) {
+            return addDeviceFull;
+        }
+        if ((_capacity > 0) && (_size >= _capacity)) {
+            return addQueueFull;
+        }
+        if (lane == null) {
+            lane = getLane(command.getScanDevice());
+        }
+        lane.commands[clampPriority(command.getPriority())].addLast(command);
+        lane.size++;
+        _size++;
+        // the next refusal starts a new saturation
+        lane.saturated = false;
+        _saturated = false;
+        return addQueued;
+    }
+
+    /**
+     * remember that a command has been refused because of the capacity of a lane or of the
+     * whole queue
+     *
+     * @param device the target of the lane, or null for the whole queue
+     * @return true if this is the first command refused since the last one added, so the
+     * saturation is reported only once
+     */
+    public boolean setSaturated(ISktScanDevice device) {
+        boolean first;
+        if (device == null) {
+            first = !_saturated;
+            _saturated = true;
+        } else {
+            Lane lane = _lanes.get(device);
+            first = (lane != null) && !lane.saturated;
+            if (lane != null) {
+                lane.saturated = true;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * remove the oldest background command that has not been sent yet, to make room for a new
+     * command
+     *
+     * @param device the target whose lane is full, or null to look in all the lanes
+     * @return the command removed, or null if there is no background command to remove
+     */
+    public CommandContext removeOldestBackground(ISktScanDevice device) {
+        CommandContext oldest = null;
+        if (device != null) {
+            Lane lane = _lanes.get(device);
+            if (lane != null) {
+                oldest = lane.commands[CommandContext.priorityBackground].first;
+            }
+        } else {
+            for (int l = 0; l < _laneCount; l++) {
+                CommandContext first =
+                        _laneArray[l].commands[CommandContext.priorityBackground].first;
+                if ((first != null) && ((oldest == null) ||
+                        (first.getQueuedTime() - oldest.getQueuedTime() < 0))) {
+                    oldest = first;
+                }
+            }
+        }
+        if (oldest != null) {
+            remove(oldest);
+        }
+        return oldest;
+    }
+
+    /**
+     * wait until a command is removed from the queue or the timeout expires, the caller must own
+     * the queue lock which is released during the wait
+     *
+     * @param timeout in milliseconds
+     */
+    public void waitForSpace(long timeout) {
+        _waiters++;
+        try {
+            wait(Math.max(1, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            _waiters--;
+        }
+    }
+
+    /**
+     * remove a command from the queue, typically once it has completed
+     *
+     * @return true if the command was in the queue
+     */
+    public boolean remove(CommandContext command) {
+        boolean removed = false;
+        Lane lane = _lanes.get(command.getScanDevice());
+        if (lane != null) {
+            if (lane.inFlight == command) {
+                lane.inFlight = null;
+                removed = true;
+            } else {
+                // the command might still be linked to the list of a lane already removed
+                CommandList list = lane.getList(command.queueList);
+                removed = (list != null) && list.remove(command);
+            }
+            if (removed) {
+                lane.size--;
+                _size--;
+                if (command == _abort) {
+                    _abort = null;
+                }
+                signalSpace();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * cancel the command that has a particular callback if it hasn't been sent yet. A command
+     * other commands have been coalesced into is still sent, only its callback is removed. A
+     * command coalesced into another one is detached from it, even if the other one has been
+     * sent. The callback is searched in all the commands, so this is O(queue).
+     *
+     * @return true if a command has been cancelled
+     */
+    public boolean cancel(ICommandContextCallback callback) {
+        if (callback == null) {
+            return false;
+        }
+        for (int l = 0; l < _laneCount; l++) {
+            Lane lane = _laneArray[l];
+            CommandContext found = null;
+            if ((lane.inFlight != null) && (lane.inFlight.getCallback() == callback)) {
+                // a command sent can't be taken back, unless it waits for a retry
+                if (lane.inFlight.getStatus() != CommandContext.statusReady) {
+                    return false;
+                }
+                found = lane.inFlight;
+            }
+            for (int i = 0; (found == null) && (i < priorityCount); i++) {
+                for (CommandContext command = lane.commands[i].first; command != null;
+                        command = command.queueNext) {
+                    if (command.getCallback() == callback) {
+                        found = command;
+                        break;
+                    }
+                }
+            }
+            if (found != null) {
+                if (found.hasCoalesced()) {
+                    found.detachCallback();
+                } else {
+                    remove(found);
+                }
+                return true;
+            }
+        }
+        for (int l = 0; l < _laneCount; l++) {
+            Lane lane = _laneArray[l];
+            if ((lane.inFlight != null) && detachCoalesced(lane.inFlight, callback)) {
+                return true;
+            }
+            for (int i = 0; i < priorityCount; i++) {
+                for (CommandContext command = lane.commands[i].first; command != null;
+                        command = command.queueNext) {
+                    if (detachCoalesced(command, callback)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * remove all the commands of a target
+     */
+    public void removeDevice(ISktScanDevice device) {
+        Lane lane = _lanes.remove(device);
+        if (lane != null) {
+            for (int l = 0; l < _laneCount; l++) {
+                if (_laneArray[l] == lane) {
+                    _laneArray[l] = _laneArray[--_laneCount];
+                    _laneArray[_laneCount] = null;
+                    break;
+                }
+            }
+            _size -= lane.size;
+            if ((_abort != null) && (_abort.getScanDevice() == device)) {
+                _abort = null;
+            }
+            signalSpace();
+        }
+    }
+
+    public void clear() {
+        _lanes.clear();
+        for (int l = 0; l < _laneCount; l++) {
+            _laneArray[l] = null;
+        }
+        _laneCount = 0;
+        _size = 0;
+        _abort = null;
+        signalSpace();
+    }
+
+    /**
+     * retrieve the commands that can be sent now: for each lane without any command waiting for
+     * its completion, the command with the highest priority once aged, or only the Abort command
+     * if there is one pending
+     *
+     * @param ready receives the commands ready to be sent
+     */
+    public void getReadyCommands(List<CommandContext> ready) {
+        long now = System.nanoTime();
+        if (_abort != null) {
+            if (_abort.isReady(now)) {
+                ready.add(_abort);
+            }
+        } else {
+            for (int l = 0; l < _laneCount; l++) {
+                Lane lane = _laneArray[l];
+                if (lane.inFlight == null) {
+                    lane.inFlight = pollNext(lane, now);
+                }
+                if ((lane.inFlight != null) && (lane.inFlight.isReady(now))) {
+                    ready.add(lane.inFlight);
+                }
+            }
+        }
+    }
+
+    /**
+     * tell if a Set of a property is waiting to be sent to a target
+     */
+    public boolean hasPendingSet(ISktScanDevice device, int propertyId) {
+        Lane lane = _lanes.get(device);
+        return (lane != null) && (getLatestSet(lane, propertyId) != null);
+    }
+
+    /**
+     * retrieve how long until a command waiting for its retry delay can be sent again
+     *
+     * @param now System.nanoTime()
+     * @return the delay in milliseconds, or -1 if no command is waiting for a retry
+     */
+    public long getNextRetryDelay(long now) {
+        long next = -1;
+        for (int l = 0; l < _laneCount; l++) {
+            CommandContext command = _laneArray[l].inFlight;
+            if ((command != null) && (command.getStatus() == CommandContext.statusReady) &&
+                    (command.getNotBefore() != 0)) {
+                long delay = Math.max(1, (command.getNotBefore() - now + 999999) / 1000000L);
+                if ((next < 0) || (delay < next)) {
+                    next = delay;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * remove from the lane lists the command to send next, the heads of the lists are the oldest
+     * command of each priority so only them need to be compared
+     */
+    private CommandContext pollNext(Lane lane, long now) {
+        int selected = -1;
+        int selectedPriority = Integer.MAX_VALUE;
+        for (int i = 0; i < priorityCount; i++) {
+            if (!lane.commands[i].isEmpty()) {
+                long waited = now - lane.commands[i].first.getQueuedTime();
+                int priority = (int) Math.max(0, i - (waited / _agingPeriodNanos));
+                if (priority < selectedPriority) {
+                    selected = i;
+                    selectedPriority = priority;
+                }
+            }
+        }
+        CommandContext next = null;
+        if (selected >= 0) {
+            next = lane.commands[selected].first;
+            lane.commands[selected].remove(next);
+        }
+        return next;
+    }
+
+    /**
+     * retrieve the pending Set of a property queued last in the lane, null if there is none
+     */
+    private static CommandContext getLatestSet(Lane lane, int propertyId) {
+        CommandContext latest = null;
+        for (int i = 0; i < priorityCount; i++) {
+            for (CommandContext pending = lane.commands[i].first; pending != null;
+                    pending = pending.queueNext) {
+                if ((!pending.getOperation()) && (propertyId ==
+                        pending.getScanObject().getProperty().getID()) && ((latest == null) ||
+                        (pending.getQueuedTime() - latest.getQueuedTime() > 0))) {
+                    latest = pending;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * merge a command with a pending command of the lane that has not been sent yet, the lane is
+     * searched for the latest Set of the property of a Get and for a command to merge with, so
+     * this is O(lane)
+     *
+     * @return true if the command has been coalesced and must not be added
+     */
+    private boolean coalesce(Lane lane, CommandContext command) {
+        // a Get queued before a pending Set of the same property would return the value from
+        // before the Set, so a Get is only merged with the Gets queued after the latest Set
+        CommandContext latestSet = null;
+        if (command.getOperation()) {
+            latestSet = getLatestSet(lane, command.getScanObject().getProperty().getID());
+        }
+        boolean setPending = latestSet != null;
+
+        // the command in flight can be used only while it waits for a retry
+        if ((lane.inFlight != null) && command.getOperation() && (!setPending) &&
+                (lane.inFlight.getStatus() == CommandContext.statusReady) &&
+                command.canCoalesceWith(lane.inFlight)) {
+            lane.inFlight.addCoalesced(command);
+            return true;
+        }
+
+        for (int i = 0; i < priorityCount; i++) {
+            CommandList commands = lane.commands[i];
+            for (CommandContext pending = commands.first; pending != null;
+                    pending = pending.queueNext) {
+                if (setPending && pending.getOperation() &&
+                        (pending.getQueuedTime() - latestSet.getQueuedTime() <= 0)) {
+                    continue;
+                }
+                if (command.canCoalesceWith(pending)) {
+                    CommandContext kept = pending;
+                    if (command.getOperation()) {
+                        pending.addCoalesced(command);
+                    } else {
+                        // the newest Set is sent in place of the pending one
+                        command.addCoalesced(pending);
+                        command.setQueuedTime(pending.getQueuedTime());
+                        commands.replace(pending, command);
+                        kept = command;
+                    }
+                    // the merged command keeps the highest priority of both
+                    int priority = Math.min(clampPriority(command.getPriority()), i);
+                    if (priority != i) {
+                        commands.remove(kept);
+                        lane.commands[priority].addLast(kept);
+                    }
+                    kept.setPriority(priority);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * remove the command that has a particular callback from the commands coalesced into a
+     * command, or into them, the commands coalesced into the one removed stay with the command
+     *
+     * @return true if the command has been found
+     */
+    private static boolean detachCoalesced(CommandContext command,
+            ICommandContextCallback callback) {
+        ArrayList<CommandContext> coalesced = command.getCoalesced();
+        if (coalesced == null) {
+            return false;
+        }
+        for (int i = 0; i < coalesced.size(); i++) {
+            CommandContext follower = coalesced.get(i);
+            if (follower.getCallback() == callback) {
+                coalesced.remove(i);
+                ArrayList<CommandContext> followers = follower.getCoalesced();
+                if (followers != null) {
+                    for (int j = 0; j < followers.size(); j++) {
+                        command.addCoalesced(followers.get(j));
+                    }
+                    followers.clear();
+                }
+                return true;
+            }
+            if (detachCoalesced(follower, callback)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signalSpace() {
+        if (_waiters > 0) {
+            notifyAll();
+        }
+    }
+
+    private static int clampPriority(int priority) {
+        return Math.min(Math.max(priority, 0), priorityCount - 1);
+    }
+
+    private Lane getLane(ISktScanDevice target) {
+        Lane lane = _lanes.get(target);
+        if (lane == null) {
+            lane = new Lane();
+            _lanes.put(target, lane);
+            if (_laneCount == _laneArray.length) {
+                Lane[] lanes = new Lane[_laneArray.length * 2];
+                System.arraycopy(_laneArray, 0, lanes, 0, _laneCount);
+                _laneArray = lanes;
+            }
+            _laneArray[_laneCount++] = lane;
+        }
+        return lane;
+    }
+
+    private static boolean isAbort(CommandContext command) {
+        return command.getScanObject().getProperty().getID() ==
+                ISktScanProperty.propId.kSktScanPropIdAbort;
+    }
+}
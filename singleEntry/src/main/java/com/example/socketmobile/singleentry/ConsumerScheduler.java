@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * ConsumerScheduler computes the period of the ScanAPI consumer timer.
+ *
+ * As soon as the consumer handles some ScanObjects or there are some commands pending, the
+ * period drops to its minimum so the scanner gets a quick response. Each tick without any
+ * traffic doubles the period up to its maximum, so an idle application doesn't keep waking up.
+ *
+ * It also keeps a smoothed rate of the ScanObjects received, in events per second.
+ */
+class ConsumerScheduler {
+
+    public static final long defaultMinInterval = 20;
+
+    // the consumer is only woken up by the commands posted, a decoded data waits for the next
+    // tick so the idle period is never longer than the fixed period of the timer consumer,
+    // ScanApiHelper.setAdaptiveScheduling caps the maximum to it as well
+    public static final long defaultMaxInterval = 200;
+
+    // weight of the last tick in the smoothed event rate
+    private static final double rateSmoothing = 0.2;
+
+    private long _minInterval;
+
+    private long _maxInterval;
+
+    private long _interval;
+
+    private double _eventRate;
+
+    private long _lastUpdate;
+
+    public ConsumerScheduler(long minInterval, long maxInterval) {
+        setLimits(minInterval, maxInterval);
+        this._eventRate = 0;
+        this._lastUpdate = System.nanoTime();
+    }
+
+    public synchronized void setLimits(long minInterval, long maxInterval) {
+        this._minInterval = Math.max(1, minInterval);
+        this._maxInterval = Math.max(this._minInterval, maxInterval);
+        this._interval = this._minInterval;
+    }
+
+    public synchronized long getMinInterval() {
+        return _minInterval;
+    }
+
+    public synchronized long getMaxInterval() {
+        return _maxInterval;
+    }
+
+    /**
+     * current period of the consumer in milliseconds
+     */
+    public synchronized long getInterval() {
+        return _interval;
+    }
+
+    /**
+     * smoothed number of ScanObjects received per second
+     */
+    public synchronized double getEventRate() {
+        return _eventRate;
+    }
+
+    /**
+     * update the period and the event rate after a consumer tick
+     *
+     * @param events          number of ScanObjects handled during this tick
+     * @param commandsPending true if some commands are waiting to be sent or completed
+     */
+    public synchronized void update(int events, boolean commandsPending) {
+        long now = System.nanoTime();
+        long elapsed = now - _lastUpdate;
+        _lastUpdate = now;
+        if (elapsed > 0) {
+            double rate = events * 1000000000.0 / elapsed;
+            _eventRate += rateSmoothing * (rate - _eventRate);
+        }
+
+        if ((events > 0) || commandsPending) {
+            _interval = _minInterval;
+        } else {
+            _interval = Math.min(_interval * 2, _maxInterval);
+        }
+    }
+
+    /**
+     * the consumer should run as soon as possible, typically because a command has been posted
+     *
+     * @return true if the period was longer than its minimum
+     */
+    public synchronized boolean speedUp() {
+        boolean wasIdle = _interval > _minInterval;
+        _interval = _minInterval;
+        return wasIdle;
+    }
+}
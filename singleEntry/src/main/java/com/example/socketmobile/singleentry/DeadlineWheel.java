@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * DeadlineWheel tracks the deadlines of the commands in flight with a hashed timing wheel.
+ *
+ * The wheel is a ring of slots each covering one tick of time. A command goes in the slot of the
+ * tick of its deadline, whatever the number of turns of the wheel left before it expires, so
+ * scheduling and cancelling a deadline are O(1) and advancing the wheel only visits the slots of
+ * the ticks that have passed.
+ *
+ * The wheel is advanced by the ScanAPI consumer. It is not thread safe by itself, the caller
+ * synchronizes on it.
+ */
+class DeadlineWheel {
+
+    public static final long defaultTickDuration = 50;
+
+    public static final int defaultWheelSize = 64;
+
+    /**
+     * a deadline in the list of its slot
+     */
+    private static class Entry {
+
+        CommandContext command;
+
+        long tick;
+
+        Entry previous;
+
+        Entry next;
+    }
+
+    private final Entry[] _slots;
+
+    private final int _mask;
+
+    private final long _tickNanos;
+
+    private final long _origin;
+
+    // last tick the wheel has been advanced to
+    private long _currentTick;
+
+    private final IdentityHashMap<CommandContext, Entry> _entries;
+
+    // entries of the cancelled or expired deadlines, linked by next, reused by schedule
+    private Entry _freeEntries;
+
+    /**
+     * @param tickDuration duration covered by a slot in milliseconds
+     * @param wheelSize    number of slots, rounded up to a power of 2
+     */
+    public DeadlineWheel(long tickDuration, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        _slots = new Entry[size];
+        _mask = size - 1;
+        _tickNanos = Math.max(1, tickDuration) * 1000000L;
+        _origin = System.nanoTime();
+        _currentTick = 0;
+        _entries = new IdentityHashMap<>();
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    /**
+     * set the deadline of a command, replacing its previous deadline if any
+     *
+     * @param deadline System.nanoTime() after which the command expires
+     */
+    public void schedule(CommandContext command, long deadline) {
+        cancel(command);
+        long tick = (deadline - _origin + _tickNanos - 1) / _tickNanos;
+        if (tick <= _currentTick) {
+            tick = _currentTick + 1;
+        }
+        Entry entry = _freeEntries;
+        if (entry != null) {
+            _freeEntries = entry.next;
+            entry.next = null;
+        } else {
+            entry = new Entry();
+        }
+        entry.command = command;
+        entry.tick = tick;
+        int slot = (int) tick & _mask;
+        entry.next = _slots[slot];
+        if (entry.next != null) {
+            entry.next.previous = entry;
+        }
+        _slots[slot] = entry;
+        _entries.put(command, entry);
+    }
+
+    /**
+     * remove the deadline of a command, typically because its completion has been received
+     */
+    public void cancel(CommandContext command) {
+        Entry entry = _entries.remove(command);
+        if (entry != null) {
+            unlink(entry);
+            recycle(entry);
+        }
+    }
+
+    /**
+     * advance the wheel up to now and retrieve the commands whose deadline has passed
+     *
+     * @param now     System.nanoTime()
+     * @param expired receives the expired commands
+     */
+    public void advance(long now, List<CommandContext> expired) {
+        long target = (now - _origin) / _tickNanos;
+        // a whole turn visits every slot, no need to go further
+        long last = Math.min(target, _currentTick + _slots.length);
+        for (long tick = _currentTick + 1; tick <= last; tick++) {
+            Entry entry = _slots[(int) tick & _mask];
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.tick <= target) {
+                    unlink(entry);
+                    _entries.remove(entry.command);
+                    expired.add(entry.command);
+                    recycle(entry);
+                }
+                entry = next;
+            }
+        }
+        if (target > _currentTick) {
+            _currentTick = target;
+        }
+    }
+
+    /**
+     * retrieve how long until the wheel should be advanced again
+     *
+     * @param now System.nanoTime()
+     * @return the delay in milliseconds, or -1 if there is no deadline
+     */
+    public long getNextDeadlineDelay(long now) {
+        if (_entries.isEmpty()) {
+            return -1;
+        }
+        // without any deadline in this turn, check again after a whole turn
+        long next = _currentTick + _slots.length;
+        for (long tick = _currentTick + 1; tick < next; tick++) {
+            Entry entry = _slots[(int) tick & _mask];
+            while ((entry != null) && (entry.tick > tick)) {
+                entry = entry.next;
+            }
+            if (entry != null) {
+                next = tick;
+                break;
+            }
+        }
+        long delay = (_origin + next * _tickNanos - now + 999999) / 1000000L;
+        return Math.max(1, delay);
+    }
+
+    private void recycle(Entry entry) {
+        entry.command = null;
+        entry.next = _freeEntries;
+        _freeEntries = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else {
+            _slots[(int) entry.tick & _mask] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+    }
+}
@@ -27,7 +27,40 @@ public final class Debug {
 
     private static String kTag = "SingleEntry";
 
+    // messages below this level are not logged, the traces are only logged by the debug builds
+    private static volatile int _level = BuildConfig.DEBUG ? kLevelTrace : kLevelWarning;
+
+    /**
+     * set the lowest level of the messages logged
+     */
+    public static void setLevel(int level) {
+        _level = level;
+    }
+
+    public static int getLevel() {
+        return _level;
+    }
+
+    /**
+     * check if the messages of a level are logged, so the callers on a hot path don't build a
+     * message that would be dropped
+     */
+    public static boolean isEnabled(int level) {
+        return level >= _level;
+    }
+
+    /**
+     * log a report explicitly asked for, such as the dumps requested by an intent, whatever the
+     * level of the messages logged
+     */
+    public static void DUMP(String report) {
+        Log.i(kTag, report);
+    }
+
     public static void MSG(int level, String expression) {
+        if (level < _level) {
+            return;
+        }
         if (level == Debug.kLevelTrace) {
             Log.d(kTag, expression);
         } else if (level == Debug.kLevelWarning) {
@@ -19,14 +19,33 @@ import com.socketmobile.scanapi.ISktScanDevice;
 import com.socketmobile.scanapi.ISktScanSymbology;
 import com.socketmobile.scanapi.SktScanDeviceType;
 
+import java.util.BitSet;
+
 public class DeviceInfo {
 
+    /**
+     * fields reported as changed to the ChangeNotification
+     */
+    public static final int CHANGED_BT_ADDRESS = 1;
+
+    public static final int CHANGED_VERSION = 1 << 1;
+
+    public static final int CHANGED_BATTERY_LEVEL = 1 << 2;
+
+    public static final int CHANGED_SUFFIX = 1 << 3;
+
+    public static final int CHANGED_SYMBOLOGY_NAMES = 1 << 4;
+
+    public static final int CHANGED_SYMBOLOGY_STATUS = 1 << 5;
+
     private ISktScanDevice _device;
 
     private String _name;
 
     private String _btaddress;
 
+    private String _guid;
+
     private long _type;
 
     private String _version;
@@ -39,38 +58,48 @@ public class DeviceInfo {
 
     private String _suffix;
 
-    private SymbologyInfo _symbologyInfo[];
+    // number of symbologies, the symbology ID 1 being at the index 0
+    static final int symbologyCount = ISktScanSymbology.id.kSktScanSymbologyLastSymbolID - 1;
+
+    // the symbology names are the same for all the devices
+    private static final String[] _symbologyNames = new String[symbologyCount];
+
+    private final BitSet _symbologyEnabled;
+
+    private final BitSet _symbologyNotSupported;
 
     private int _symbologyindex;
 
     private Notification _notification = null;
 
-    interface Notification {
-
-        void OnNotify(DeviceInfo deviceInfo);
-    }
+    private ChangeNotification _changeNotification = null;
 
-    class SymbologyInfo {
+    // fields changed and not notified yet
+    private int _changedFields;
 
-        private String _name;
+    // number of beginChanges not ended yet
+    private int _changeBatches;
 
-        private int _status;
+    private boolean _deferChanges;
 
-        public String getName() {
-            return _name;
-        }
+    private final PropertyCache _propertyCache = new PropertyCache();
 
-        public void setName(String name) {
-            _name = name;
-        }
+    interface Notification {
 
-        public int getStatus() {
-            return _status;
-        }
+        void OnNotify(DeviceInfo deviceInfo);
+    }
 
-        public void setStatus(int status) {
-            _status = status;
-        }
+    /**
+     * ChangeNotification receives the changes of a DeviceInfo, several changes being delivered
+     * at once when they are made in a batch or when the notifications are deferred
+     */
+    public interface ChangeNotification {
+
+        /**
+         * @param changedFields combination of the CHANGED_ values of the fields that have a new
+         *                      value
+         */
+        void onChanged(DeviceInfo deviceInfo, int changedFields);
     }
 
     public DeviceInfo(String name, ISktScanDevice device, long type) {
@@ -83,17 +112,104 @@ public class DeviceInfo {
         this._ndecodeval = 0;
         this._rumable = true;
         this._suffix = "\n";
-        this._symbologyInfo = new SymbologyInfo[ISktScanSymbology.id.kSktScanSymbologyLastSymbolID
-                - 1];
-        for (int i = 0; i < this._symbologyInfo.length; i++) {
-            this._symbologyInfo[i] = new SymbologyInfo();
-        }
+        this._symbologyEnabled = new BitSet(symbologyCount);
+        this._symbologyNotSupported = new BitSet(symbologyCount);
     }
 
     public void setNotification(Notification notification) {
         this._notification = notification;
     }
 
+    public void setChangeNotification(ChangeNotification changeNotification) {
+        this._changeNotification = changeNotification;
+    }
+
+    /**
+     * beginChanges
+     *
+     * start a batch of changes, the notifications are held until the matching endChanges and
+     * then delivered once with all the fields changed in between. The batches can be nested.
+     */
+    public synchronized void beginChanges() {
+        _changeBatches++;
+    }
+
+    /**
+     * endChanges
+     *
+     * end a batch of changes, the changes are notified if this is the outermost batch and the
+     * notifications are not deferred
+     */
+    public void endChanges() {
+        boolean notify;
+        synchronized (this) {
+            if (_changeBatches > 0) {
+                _changeBatches--;
+            }
+            notify = (_changeBatches == 0) && (!_deferChanges);
+        }
+        if (notify) {
+            flushChanges();
+        }
+    }
+
+    /**
+     * hold all the notifications until flushChanges is called, typically once per frame by the
+     * view displaying the device
+     *
+     * @param defer true to hold the notifications, false to notify again each change as it is
+     *              made, the changes held are notified right away
+     */
+    public void setDeferChanges(boolean defer) {
+        synchronized (this) {
+            _deferChanges = defer;
+        }
+        if (!defer) {
+            flushChanges();
+        }
+    }
+
+    /**
+     * flushChanges
+     *
+     * notify the changes made since the last notification, if any, from the calling thread
+     */
+    public void flushChanges() {
+        int changedFields;
+        synchronized (this) {
+            changedFields = _changedFields;
+            _changedFields = 0;
+        }
+        if (changedFields == 0) {
+            return;
+        }
+        if (this._notification != null) {
+            this._notification.OnNotify(this);
+        }
+        ChangeNotification changeNotification = this._changeNotification;
+        if (changeNotification != null) {
+            changeNotification.onChanged(this, changedFields);
+        }
+    }
+
+    /**
+     * record a field change and notify it unless it is part of a batch or deferred
+     */
+    void onChanged(int field) {
+        boolean notify;
+        synchronized (this) {
+            _changedFields |= field;
+            notify = (_changeBatches == 0) && (!_deferChanges);
+        }
+        if (notify) {
+            flushChanges();
+        }
+    }
+
+    private static boolean isSame(String value, String other) {
+        return value != null ? value.equals(other) : other == null;
+    }
+
     public String getName() {
         return _name;
     }
@@ -106,6 +222,25 @@ public class DeviceInfo {
         return _device;
     }
 
+    /**
+     * the GUID ScanAPI has given to the device, null if the device is not connected
+     */
+    public String getGuid() {
+        return _guid;
+    }
+
+    public void setGuid(String guid) {
+        _guid = guid;
+    }
+
+    /**
+     * the values returned by the device to the Gets, used by ScanApiHelper to answer the Gets
+     * asked again
+     */
+    PropertyCache getPropertyCache() {
+        return _propertyCache;
+    }
+
     public String getTypeString() {
         String type;
         if (_type == SktScanDeviceType.kSktScanDeviceTypeScanner7) {
@@ -152,12 +287,70 @@ public class DeviceInfo {
         return _symbologyindex;
     }
 
-    public int getSymbologyStatus(int index) {
-        return _symbologyInfo[index].getStatus();
+    public synchronized int getSymbologyStatus(int index) {
+        if (_symbologyEnabled.get(index)) {
+            return ISktScanSymbology.status.kSktScanSymbologyStatusEnable;
+        }
+        if (_symbologyNotSupported.get(index)) {
+            return ISktScanSymbology.status.kSktScanSymbologyStatusNotSupported;
+        }
+        return ISktScanSymbology.status.kSktScanSymbologyStatusDisable;
     }
 
     public String getSymbologyName(int index) {
-        return _symbologyInfo[index].getName();
+        synchronized (_symbologyNames) {
+            return _symbologyNames[index];
+        }
+    }
+
+    /**
+     * keep the name of a symbology in the table shared by all the devices
+     *
+     * @return true if the name is new
+     */
+    static boolean putSymbologyName(int index, String name) {
+        synchronized (_symbologyNames) {
+            // a Get answered from the property cache has no name
+            if ((name != null) && (name.length() > 0) &&
+                    (!name.equals(_symbologyNames[index]))) {
+                _symbologyNames[index] = name.intern();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * retrieve the symbologies enabled on the device, each bit being the index of a symbology
+     */
+    public synchronized BitSet getEnabledSymbologies() {
+        return (BitSet) _symbologyEnabled.clone();
+    }
+
+    /**
+     * retrieve the symbologies not supported by the device
+     */
+    public synchronized BitSet getNotSupportedSymbologies() {
+        return (BitSet) _symbologyNotSupported.clone();
+    }
+
+    /**
+     * compare the symbologies of 2 devices
+     *
+     * @return the symbologies enabled on one device and not on the other, the symbologies not
+     * supported by one of the devices are left out
+     */
+    public BitSet getSymbologyDifferences(DeviceInfo other) {
+        BitSet otherEnabled = other.getEnabledSymbologies();
+        BitSet otherNotSupported = other.getNotSupportedSymbologies();
+        BitSet differences;
+        synchronized (this) {
+            differences = (BitSet) _symbologyEnabled.clone();
+            differences.xor(otherEnabled);
+            differences.andNot(_symbologyNotSupported);
+        }
+        differences.andNot(otherNotSupported);
+        return differences;
     }
 
     public void setName(String name) {
@@ -165,24 +358,23 @@ public class DeviceInfo {
     }
 
     public void setBtAddress(String btaddress) {
-        this._btaddress = btaddress;
-        if (this._notification != null) {
-            this._notification.OnNotify(this);
+        if (!isSame(this._btaddress, btaddress)) {
+            this._btaddress = btaddress;
+            onChanged(CHANGED_BT_ADDRESS);
         }
     }
 
     public void setVersion(String version) {
-        this._version = version;
-        if (this._notification != null) {
-            this._notification.OnNotify(this);
+        if (!isSame(this._version, version)) {
+            this._version = version;
+            onChanged(CHANGED_VERSION);
         }
-
     }
 
     public void setBatteryLevel(String battery) {
-        this._batteryLevel = battery;
-        if (this._notification != null) {
-            this._notification.OnNotify(this);
+        if (!isSame(this._batteryLevel, battery)) {
+            this._batteryLevel = battery;
+            onChanged(CHANGED_BATTERY_LEVEL);
         }
     }
 
@@ -195,21 +387,116 @@ public class DeviceInfo {
     }
 
     public void setSuffix(String suffix) {
-        this._suffix = suffix;
-        if (this._notification != null) {
-            this._notification.OnNotify(this);
+        if (!isSame(this._suffix, suffix)) {
+            this._suffix = suffix;
+            onChanged(CHANGED_SUFFIX);
         }
     }
 
     public void setSymbologyStatus(int index, int symbologyStatus) {
-        this._symbologyInfo[index].setStatus(symbologyStatus);
+        putSymbologyStatus(index, symbologyStatus);
+    }
+
+    /**
+     * @return true if the status of the symbology has changed
+     */
+    private synchronized boolean putSymbologyStatus(int index, int symbologyStatus) {
+        boolean enabled =
+                symbologyStatus == ISktScanSymbology.status.kSktScanSymbologyStatusEnable;
+        boolean notSupported =
+                symbologyStatus == ISktScanSymbology.status.kSktScanSymbologyStatusNotSupported;
+        if ((_symbologyEnabled.get(index) == enabled) &&
+                (_symbologyNotSupported.get(index) == notSupported)) {
+            return false;
+        }
+        _symbologyEnabled.set(index, enabled);
+        _symbologyNotSupported.set(index, notSupported);
+        return true;
     }
 
     public void setSymbologyName(int index, String symbologyName) {
-        this._symbologyInfo[index].setName(symbologyName);
-        if (this._notification != null) {
-            this._notification.OnNotify(this);
+        if (putSymbologyName(index, symbologyName)) {
+            onChanged(CHANGED_SYMBOLOGY_NAMES);
+        }
+    }
+
+    /**
+     * replace the whole symbology table with a single notification
+     *
+     * @param names  the symbology names, the first one being the symbology ID 1
+     * @param status the status of each symbology
+     */
+    public void setSymbologyTable(String[] names, int[] status) {
+        int count = Math.min(Math.min(names.length, status.length), symbologyCount);
+        int changedFields = 0;
+        for (int i = 0; i < count; i++) {
+            if (putSymbologyName(i, names[i])) {
+                changedFields |= CHANGED_SYMBOLOGY_NAMES;
+            }
+            if (putSymbologyStatus(i, status[i])) {
+                changedFields |= CHANGED_SYMBOLOGY_STATUS;
+            }
+        }
+        if (changedFields != 0) {
+            onChanged(changedFields);
+        }
+    }
+
+    /**
+     * replace the status of some symbologies with a single notification, the names are
+     * expected to be in the shared table already
+     *
+     * @param mask the symbologies whose status is given, the other ones keep their status
+     */
+    public void setSymbologyTable(BitSet enabled, BitSet notSupported, BitSet mask) {
+        synchronized (this) {
+            BitSet newEnabled = replaceBits(_symbologyEnabled, enabled, mask);
+            BitSet newNotSupported = replaceBits(_symbologyNotSupported, notSupported, mask);
+            if (_symbologyEnabled.equals(newEnabled) &&
+                    _symbologyNotSupported.equals(newNotSupported)) {
+                return;
+            }
+            _symbologyEnabled.clear();
+            _symbologyEnabled.or(newEnabled);
+            _symbologyNotSupported.clear();
+            _symbologyNotSupported.or(newNotSupported);
+        }
+        onChanged(CHANGED_SYMBOLOGY_STATUS);
+    }
+
+    /**
+     * @return a copy of bits whose bits of the mask are the ones of values
+     */
+    private static BitSet replaceBits(BitSet bits, BitSet values, BitSet mask) {
+        BitSet result = (BitSet) bits.clone();
+        result.andNot(mask);
+        BitSet replaced = (BitSet) values.clone();
+        replaced.and(mask);
+        result.or(replaced);
+        return result;
+    }
+
+    /**
+     * update the status kept for some symbologies with a single notification, the symbologies
+     * not supported are left disabled. Only this DeviceInfo is changed, the Sets to the device
+     * are posted by ScanApiHelper.postSetSymbologyInfo.
+     *
+     * @param enabled the symbologies now enabled
+     * @param mask    the symbologies to update, the other ones keep their status
+     */
+    public void updateSymbologyStatus(BitSet enabled, BitSet mask) {
+        synchronized (this) {
+            BitSet previous = (BitSet) _symbologyEnabled.clone();
+            _symbologyEnabled.andNot(mask);
+            BitSet applied = (BitSet) mask.clone();
+            applied.and(enabled);
+            applied.andNot(_symbologyNotSupported);
+            _symbologyEnabled.or(applied);
+            if (_symbologyEnabled.equals(previous)) {
+                return;
+            }
         }
+        onChanged(CHANGED_SYMBOLOGY_STATUS);
     }
 
     public void setSymbologyIndex(int index) {
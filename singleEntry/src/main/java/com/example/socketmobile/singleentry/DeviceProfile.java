@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DeviceProfile is a set of settings applied to a scanner as one operation with
+ * ScanApiHelper.postApplyDeviceProfile.
+ *
+ * Only the settings that have been set in the profile are changed, the others are left as they
+ * are on the scanner. If one of the settings can't be applied, the settings already changed are
+ * restored to the values they had before, so the scanner is never left half configured.
+ */
+public class DeviceProfile {
+
+    /**
+     * ICallback receives the outcome of a profile applied to a device
+     */
+    public interface ICallback {
+
+        /**
+         * called once when the profile has been applied, or has failed
+         *
+         * @param result   ESKT_NOERROR if the whole profile has been applied, the error of the
+         *                 first setting that failed, ScanApiHelper.ERROR_PROFILE_MISMATCH if a
+         *                 setting read back is not the one applied, or
+         *                 ScanApiHelper.ERROR_BATCH_CANCELLED if the device has been removed
+         * @param restored true if the profile has failed and all the settings it had changed
+         *                 have been restored to their previous values
+         */
+        void onComplete(DeviceInfo deviceInfo, long result, boolean restored);
+    }
+
+    /**
+     * timers of the device, only the timers of the mask are changed
+     */
+    static class Timers {
+
+        final int mask;
+
+        final int lockOutTimer;
+
+        final int disconnectedAutoOff;
+
+        final int connectedAutoOff;
+
+        Timers(int mask, int lockOutTimer, int disconnectedAutoOff, int connectedAutoOff) {
+            this.mask = mask;
+            this.lockOutTimer = lockOutTimer;
+            this.disconnectedAutoOff = disconnectedAutoOff;
+            this.connectedAutoOff = connectedAutoOff;
+        }
+    }
+
+    private String _postamble;
+
+    private Integer _decodeAction;
+
+    private Timers _timers;
+
+    private final LinkedHashMap<Integer, short[]> _soundConfigs;
+
+    private final LinkedHashMap<Integer, Boolean> _symbologies;
+
+    public DeviceProfile() {
+        _soundConfigs = new LinkedHashMap<>();
+        _symbologies = new LinkedHashMap<>();
+    }
+
+    public DeviceProfile(DeviceProfile other) {
+        _postamble = other._postamble;
+        _decodeAction = other._decodeAction;
+        _timers = other._timers;
+        _soundConfigs = new LinkedHashMap<>();
+        for (Map.Entry<Integer, short[]> entry : other._soundConfigs.entrySet()) {
+            _soundConfigs.put(entry.getKey(), entry.getValue().clone());
+        }
+        _symbologies = new LinkedHashMap<>(other._symbologies);
+    }
+
+    public void setPostamble(String postamble) {
+        _postamble = postamble;
+    }
+
+    public String getPostamble() {
+        return _postamble;
+    }
+
+    /**
+     * @param decodeAction combination of the kSktScanLocalDecodeAction values
+     */
+    public void setDecodeAction(int decodeAction) {
+        _decodeAction = decodeAction;
+    }
+
+    public Integer getDecodeAction() {
+        return _decodeAction;
+    }
+
+    /**
+     * @param timerMask           mask of the timers to change
+     * @param lockOutTimer        Trigger Lock Out timer value
+     * @param disconnectedAutoOff Disconnected Auto power off
+     * @param connectedAutoOff    Connected Auto power off
+     */
+    public void setTimers(int timerMask, int lockOutTimer, int disconnectedAutoOff,
+            int connectedAutoOff) {
+        _timers = new Timers(timerMask, lockOutTimer, disconnectedAutoOff, connectedAutoOff);
+    }
+
+    Timers getTimers() {
+        return _timers;
+    }
+
+    /**
+     * @param soundAction type of sound to change its configuration
+     * @param soundConfig triplets of frequency, duration and pause, as for
+     *                    ScanApiHelper.postSetSoundConfigDevice
+     */
+    public void setSoundConfig(int soundAction, short[] soundConfig) {
+        _soundConfigs.put(soundAction, soundConfig.clone());
+    }
+
+    Map<Integer, short[]> getSoundConfigs() {
+        return _soundConfigs;
+    }
+
+    public void setSymbology(int symbologyId, boolean enable) {
+        _symbologies.put(symbologyId, enable);
+    }
+
+    Map<Integer, Boolean> getSymbologies() {
+        return _symbologies;
+    }
+
+    /**
+     * read a value from a ScanAPI array, each value is stored on 2 bytes with the most
+     * significant first and each byte takes one char
+     */
+    static int getWord(char[] value, int offset) {
+        return ((value[offset] & 0xff) << 8) + (value[offset + 1] & 0xff);
+    }
+
+    public boolean isEmpty() {
+        return (_postamble == null) && (_decodeAction == null) && (_timers == null) &&
+                _soundConfigs.isEmpty() && _symbologies.isEmpty();
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.ISktScanProperty;
+import com.socketmobile.scanapi.ISktScanSymbology;
+import com.socketmobile.scanapi.SktScanErrors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * DeviceProfileTransaction applies a DeviceProfile to a device in phases, the commands of a
+ * phase are all queued at once so they are sent back to back:
+ * <ul>
+ * <li> capture: read the current value of each setting of the profile
+ * <li> apply: set the settings whose current value is not already the one of the profile
+ * <li> verify: optionally read back the settings applied
+ * <li> restore: if the apply or the verify has failed, set back the previous values of the
+ * settings that have been applied
+ * </ul>
+ * The callback is notified once at the end.
+ * <p>
+ * A phase ends once the callback of each of its commands has been called. ScanApiHelper calls it
+ * for every command, including the commands refused by a full queue, the ones that can't be
+ * sent and the ones that time out, so a transaction never stays in a phase.
+ */
+class DeviceProfileTransaction implements IDeviceOperation {
+
+    private static final int phaseCapture = 0;
+
+    private static final int phaseApply = 1;
+
+    private static final int phaseVerify = 2;
+
+    private static final int phaseRestore = 3;
+
+    private static final int phaseFinished = 4;
+
+    /**
+     * one setting of the profile, its Gets read the device and not the property cache since the
+     * device might have lost the cached values, for instance after a reset
+     */
+    private abstract class Step implements IDeviceReadCallback {
+
+        // the value before the profile was applied, null if it couldn't be read
+        Object previous;
+
+        boolean applied;
+
+        abstract void postGet();
+
+        abstract void postSet(Object value);
+
+        /**
+         * @return the value of a Get Complete, null if it can't be interpreted
+         */
+        abstract Object read(ISktScanObject scanObj);
+
+        /**
+         * @return true if the value is the one of the profile
+         */
+        abstract boolean matches(Object value);
+
+        @Override
+        public void run(ISktScanObject scanObj) {
+            onStepComplete(this, scanObj);
+        }
+    }
+
+    private final ScanApiHelper _scanApiHelper;
+
+    private final DeviceInfo _deviceInfo;
+
+    private final DeviceProfile.ICallback _callback;
+
+    private final boolean _verify;
+
+    private final ArrayList<Step> _steps;
+
+    private int _phase;
+
+    // number of commands of the current phase not yet completed
+    private int _pending;
+
+    private long _result;
+
+    private boolean _restored;
+
+    public DeviceProfileTransaction(ScanApiHelper scanApiHelper, DeviceInfo deviceInfo,
+            DeviceProfile profile, boolean verify, DeviceProfile.ICallback callback) {
+        _scanApiHelper = scanApiHelper;
+        _deviceInfo = deviceInfo;
+        _callback = callback;
+        _verify = verify;
+        _steps = new ArrayList<>();
+        _phase = phaseCapture;
+        _pending = 0;
+        _result = SktScanErrors.ESKT_NOERROR;
+        _restored = true;
+
+        // the steps take a copy of the profile values
+        if (profile.getPostamble() != null) {
+            addPostamble(profile.getPostamble());
+        }
+        if (profile.getDecodeAction() != null) {
+            addDecodeAction(profile.getDecodeAction());
+        }
+        if (profile.getTimers() != null) {
+            addTimers(profile.getTimers());
+        }
+        for (Map.Entry<Integer, short[]> entry : profile.getSoundConfigs().entrySet()) {
+            addSoundConfig(entry.getKey(), entry.getValue().clone());
+        }
+        for (Map.Entry<Integer, Boolean> entry : profile.getSymbologies().entrySet()) {
+            addSymbology(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public DeviceInfo getDeviceInfo() {
+        return _deviceInfo;
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return _phase == phaseFinished;
+    }
+
+    /**
+     * queue the commands of the capture phase
+     */
+    public void start() {
+        ArrayList<Step> steps;
+        synchronized (this) {
+            steps = new ArrayList<>(_steps);
+            _pending = steps.size();
+        }
+        if (steps.isEmpty()) {
+            nextPhase();
+        } else {
+            postSteps(phaseCapture, steps);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (_phase == phaseFinished) {
+                return;
+            }
+            _phase = phaseFinished;
+        }
+        if (_callback != null) {
+            _callback.onComplete(_deviceInfo, ScanApiHelper.ERROR_BATCH_CANCELLED, false);
+        }
+    }
+
+    private void onStepComplete(Step step, ISktScanObject scanObj) {
+        long result = ScanApiHelper.getResult(scanObj);
+        boolean success = SktScanErrors.SKTSUCCESS(result);
+        boolean phaseDone;
+        synchronized (this) {
+            switch (_phase) {
+                case phaseCapture:
+                    if (success) {
+                        step.previous = step.read(scanObj);
+                    } else {
+                        setError(result);
+                    }
+                    break;
+                case phaseApply:
+                    if (success) {
+                        step.applied = true;
+                    } else {
+                        setError(result);
+                    }
+                    break;
+                case phaseVerify:
+                    if (!success) {
+                        setError(result);
+                    } else if (!step.matches(step.read(scanObj))) {
+                        setError(ScanApiHelper.ERROR_PROFILE_MISMATCH);
+                    }
+                    break;
+                case phaseRestore:
+                    if (!success) {
+                        _restored = false;
+                    }
+                    break;
+                default:
+                    // the transaction has been cancelled
+                    return;
+            }
+            phaseDone = --_pending == 0;
+        }
+        if (phaseDone) {
+            nextPhase();
+        }
+    }
+
+    private void setError(long result) {
+        // keep the first error
+        if (SktScanErrors.SKTSUCCESS(_result)) {
+            _result = result;
+        }
+    }
+
+    /**
+     * move to the next phase that has some commands to send, and queue these commands
+     */
+    private void nextPhase() {
+        ArrayList<Step> steps = new ArrayList<>();
+        int phase;
+        long result;
+        boolean restored;
+        synchronized (this) {
+            if (_phase == phaseFinished) {
+                // the transaction has been cancelled
+                return;
+            }
+            while (steps.isEmpty() && (_phase != phaseFinished)) {
+                _phase = getNextPhase();
+                for (Step step : _steps) {
+                    if (isPartOfPhase(step)) {
+                        steps.add(step);
+                    }
+                }
+            }
+            _pending = steps.size();
+            phase = _phase;
+            result = _result;
+            restored = !SktScanErrors.SKTSUCCESS(_result) && _restored;
+        }
+
+        if (phase != phaseFinished) {
+            postSteps(phase, steps);
+        } else if (_callback != null) {
+            _callback.onComplete(_deviceInfo, result, restored);
+        }
+    }
+
+    private int getNextPhase() {
+        boolean success = SktScanErrors.SKTSUCCESS(_result);
+        switch (_phase) {
+            case phaseCapture:
+                // nothing has been changed yet if a setting can't be read
+                return success ? phaseApply : phaseFinished;
+            case phaseApply:
+                if (!success) {
+                    return phaseRestore;
+                }
+                return _verify ? phaseVerify : phaseFinished;
+            case phaseVerify:
+                return success ? phaseFinished : phaseRestore;
+            default:
+                return phaseFinished;
+        }
+    }
+
+    private boolean isPartOfPhase(Step step) {
+        switch (_phase) {
+            case phaseApply:
+                // no need to send a setting the device already has
+                return !step.matches(step.previous);
+            case phaseVerify:
+                return step.applied;
+            case phaseRestore:
+                if (step.applied && (step.previous == null)) {
+                    // the previous value is unknown
+                    _restored = false;
+                }
+                return step.applied && (step.previous != null);
+            default:
+                return false;
+        }
+    }
+
+    private void postSteps(int phase, ArrayList<Step> steps) {
+        for (Step step : steps) {
+            switch (phase) {
+                case phaseApply:
+                    step.postSet(null);
+                    break;
+                case phaseRestore:
+                    step.postSet(step.previous);
+                    break;
+                default:
+                    step.postGet();
+                    break;
+            }
+        }
+    }
+
+    private void addPostamble(final String postamble) {
+        _steps.add(new Step() {
+
+            @Override
+            void postGet() {
+                _scanApiHelper.postGetPostambleDevice(_deviceInfo, this);
+            }
+
+            @Override
+            void postSet(Object value) {
+                _scanApiHelper.postSetPostamble(_deviceInfo,
+                        value == null ? postamble : (String) value, this);
+            }
+
+            @Override
+            Object read(ISktScanObject scanObj) {
+                return scanObj.getProperty().getString().getValue();
+            }
+
+            @Override
+            boolean matches(Object value) {
+                return postamble.equals(value);
+            }
+        });
+    }
+
+    private void addDecodeAction(final int decodeAction) {
+        _steps.add(new Step() {
+
+            @Override
+            void postGet() {
+                _scanApiHelper.postGetDecodeAction(_deviceInfo, this);
+            }
+
+            @Override
+            void postSet(Object value) {
+                _scanApiHelper.postSetDecodeAction(_deviceInfo,
+                        value == null ? decodeAction : (Integer) value, this);
+            }
+
+            @Override
+            Object read(ISktScanObject scanObj) {
+                return (int) scanObj.getProperty().getByte();
+            }
+
+            @Override
+            boolean matches(Object value) {
+                return (value != null) && ((Integer) value == decodeAction);
+            }
+        });
+    }
+
+    private void addTimers(final DeviceProfile.Timers timers) {
+        _steps.add(new Step() {
+
+            @Override
+            void postGet() {
+                _scanApiHelper.postGetTimersDevice(_deviceInfo, this);
+            }
+
+            @Override
+            void postSet(Object value) {
+                DeviceProfile.Timers values = value == null ? timers :
+                        (DeviceProfile.Timers) value;
+                // only the timers of the profile are changed, or restored
+                _scanApiHelper.postSetTimersDevice(_deviceInfo, timers.mask,
+                        values.lockOutTimer, values.disconnectedAutoOff,
+                        values.connectedAutoOff, this);
+            }
+
+            @Override
+            Object read(ISktScanObject scanObj) {
+                char[] deviceTimers = scanObj.getProperty().getArray().getValue();
+                if (scanObj.getProperty().getArray().getLength() < 8) {
+                    return null;
+                }
+                return new DeviceProfile.Timers(
+                        DeviceProfile.getWord(deviceTimers, 0),
+                        DeviceProfile.getWord(deviceTimers, 2),
+                        DeviceProfile.getWord(deviceTimers, 4),
+                        DeviceProfile.getWord(deviceTimers, 6));
+            }
+
+            @Override
+            boolean matches(Object value) {
+                if (value == null) {
+                    return false;
+                }
+                DeviceProfile.Timers values = (DeviceProfile.Timers) value;
+                return matchesTimer(ISktScanProperty.values.timers
+                        .kSktScanTimerTriggerAutoLockTimeout,
+                        values.lockOutTimer, timers.lockOutTimer) &&
+                        matchesTimer(ISktScanProperty.values.timers
+                                .kSktScanTimerPowerOffDisconnected,
+                                values.disconnectedAutoOff, timers.disconnectedAutoOff) &&
+                        matchesTimer(ISktScanProperty.values.timers
+                                .kSktScanTimerPowerOffConnected,
+                                values.connectedAutoOff, timers.connectedAutoOff);
+            }
+
+            private boolean matchesTimer(int timer, int value, int expected) {
+                return ((timers.mask & timer) == 0) || (value == expected);
+            }
+        });
+    }
+
+    private void addSoundConfig(final int soundAction, final short[] soundConfig) {
+        _steps.add(new Step() {
+
+            @Override
+            void postGet() {
+                _scanApiHelper.postGetSoundConfigDevice(_deviceInfo, soundAction, this);
+            }
+
+            @Override
+            void postSet(Object value) {
+                _scanApiHelper.postSetSoundConfigDevice(_deviceInfo, soundAction,
+                        value == null ? soundConfig : (short[]) value, this);
+            }
+
+            /**
+             * the Get Complete holds the number of triplets followed by the triplets, each
+             * value on 2 bytes
+             */
+            @Override
+            Object read(ISktScanObject scanObj) {
+                char[] config = scanObj.getProperty().getArray().getValue();
+                int length = Math.min(scanObj.getProperty().getArray().getLength(),
+                        config.length);
+                if (length < 2) {
+                    return null;
+                }
+                int count = DeviceProfile.getWord(config, 0) * 3;
+                if (length < 2 + count * 2) {
+                    return null;
+                }
+                short[] values = new short[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = (short) DeviceProfile.getWord(config, 2 + i * 2);
+                }
+                return values;
+            }
+
+            @Override
+            boolean matches(Object value) {
+                return (value != null) && Arrays.equals(soundConfig, (short[]) value);
+            }
+        });
+    }
+
+    private void addSymbology(final int symbologyId, final boolean enable) {
+        _steps.add(new Step() {
+
+            @Override
+            void postGet() {
+                _scanApiHelper.postGetSymbologyInfo(_deviceInfo, symbologyId, this);
+            }
+
+            @Override
+            void postSet(Object value) {
+                _scanApiHelper.postSetSymbologyInfo(_deviceInfo, symbologyId,
+                        value == null ? enable : (Boolean) value, this);
+            }
+
+            @Override
+            Object read(ISktScanObject scanObj) {
+                int status = scanObj.getProperty().getSymbology().getStatus();
+                if (status == ISktScanSymbology.status.kSktScanSymbologyStatusEnable) {
+                    return Boolean.TRUE;
+                }
+                if (status == ISktScanSymbology.status.kSktScanSymbologyStatusDisable) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+
+            @Override
+            boolean matches(Object value) {
+                return (value != null) && ((Boolean) value == enable);
+            }
+        });
+    }
+}
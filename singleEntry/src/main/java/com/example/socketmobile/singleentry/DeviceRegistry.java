@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDevice;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * DeviceRegistry holds the devices currently connected, indexed by their ScanAPI handle, their
+ * GUID and their Bluetooth address.
+ *
+ * The devices only change when one connects or disconnects, whereas they are looked up for each
+ * decoded data, so each change builds new indexes and the lookups read the current ones without
+ * taking any lock.
+ */
+class DeviceRegistry {
+
+    private static class Indexes {
+
+        final List<DeviceInfo> devices;
+
+        final IdentityHashMap<ISktScanDevice, DeviceInfo> byHandle;
+
+        final HashMap<String, DeviceInfo> byGuid;
+
+        final HashMap<String, DeviceInfo> byAddress;
+
+        Indexes(DeviceInfo[] devices, IdentityHashMap<DeviceInfo, String> addresses) {
+            this.devices = Collections.unmodifiableList(Arrays.asList(devices));
+            byHandle = new IdentityHashMap<>();
+            byGuid = new HashMap<>();
+            byAddress = new HashMap<>();
+            for (DeviceInfo device : devices) {
+                byHandle.put(device.getSktScanDevice(), device);
+                if (device.getGuid() != null) {
+                    byGuid.put(device.getGuid(), device);
+                }
+                String address = addresses.get(device);
+                if (address != null) {
+                    byAddress.put(address, device);
+                }
+            }
+        }
+    }
+
+    private volatile Indexes _indexes;
+
+    // Bluetooth address of the devices, guarded by the registry lock
+    private final IdentityHashMap<DeviceInfo, String> _addresses;
+
+    public DeviceRegistry() {
+        _addresses = new IdentityHashMap<>();
+        _indexes = new Indexes(new DeviceInfo[0], _addresses);
+    }
+
+    public DeviceInfo get(ISktScanDevice device) {
+        return _indexes.byHandle.get(device);
+    }
+
+    public DeviceInfo getByGuid(String guid) {
+        return _indexes.byGuid.get(guid);
+    }
+
+    /**
+     * @param address the Bluetooth address, with or without separators
+     */
+    public DeviceInfo getByBluetoothAddress(String address) {
+        return address != null ? _indexes.byAddress.get(normalizeAddress(address)) : null;
+    }
+
+    /**
+     * retrieve the devices in the order they have connected, the list can't be modified and
+     * doesn't change afterwards
+     */
+    public List<DeviceInfo> getDevices() {
+        return _indexes.devices;
+    }
+
+    public int size() {
+        return _indexes.devices.size();
+    }
+
+    public synchronized void add(DeviceInfo device) {
+        List<DeviceInfo> devices = _indexes.devices;
+        DeviceInfo[] newDevices = new DeviceInfo[devices.size() + 1];
+        int count = 0;
+        for (DeviceInfo current : devices) {
+            // a device added again takes the place of the previous one
+            if (current.getSktScanDevice() != device.getSktScanDevice()) {
+                newDevices[count++] = current;
+            } else if (current != device) {
+                _addresses.remove(current);
+            }
+        }
+        newDevices[count++] = device;
+        DeviceInfo[] added = new DeviceInfo[count];
+        System.arraycopy(newDevices, 0, added, 0, count);
+        _indexes = new Indexes(added, _addresses);
+    }
+
+    /**
+     * @return the device removed, null if the handle wasn't in the registry
+     */
+    public synchronized DeviceInfo remove(ISktScanDevice device) {
+        DeviceInfo removed = _indexes.byHandle.get(device);
+        if (removed != null) {
+            List<DeviceInfo> devices = _indexes.devices;
+            DeviceInfo[] newDevices = new DeviceInfo[devices.size() - 1];
+            int count = 0;
+            for (DeviceInfo current : devices) {
+                if (current != removed) {
+                    newDevices[count++] = current;
+                }
+            }
+            _addresses.remove(removed);
+            _indexes = new Indexes(newDevices, _addresses);
+        }
+        return removed;
+    }
+
+    /**
+     * index a device by its Bluetooth address once it is known
+     */
+    public synchronized void setBluetoothAddress(DeviceInfo device, String address) {
+        if ((_indexes.byHandle.get(device.getSktScanDevice()) != device) || (address == null)) {
+            return;
+        }
+        _addresses.put(device, normalizeAddress(address));
+        List<DeviceInfo> devices = _indexes.devices;
+        _indexes = new Indexes(devices.toArray(new DeviceInfo[devices.size()]), _addresses);
+    }
+
+    public synchronized void clear() {
+        _addresses.clear();
+        _indexes = new Indexes(new DeviceInfo[0], _addresses);
+    }
+
+    private static String normalizeAddress(String address) {
+        return address.replace(":", "").replace("-", "").toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * IDeviceOperation is an operation made of several commands sent to a device, which must be
+ * cancelled if its commands are removed before their completion, typically because the device
+ * is gone.
+ */
+interface IDeviceOperation {
+
+    DeviceInfo getDeviceInfo();
+
+    boolean isFinished();
+
+    /**
+     * stop the operation, its callback is notified of the cancellation
+     */
+    void cancel();
+}
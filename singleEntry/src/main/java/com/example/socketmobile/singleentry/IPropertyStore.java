@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * IPropertyStore keeps the cached property values of the devices across their reconnections and
+ * the restarts of the application, so the Gets of a scanner coming back are answered without
+ * going over the air. The firmware version is not among them, it is never cached.
+ *
+ * The values of a device are given as a single text, keyed by the device GUID. save is called
+ * by the thread completing the commands, only when the values to keep have changed, so it
+ * should not block on a disk write.
+ */
+public interface IPropertyStore {
+
+    /**
+     * @return the text saved for this device, null if there is none
+     */
+    String load(String guid);
+
+    /**
+     * @param properties the cached values of the device, replacing the ones saved before
+     */
+    void save(String guid, String properties);
+}
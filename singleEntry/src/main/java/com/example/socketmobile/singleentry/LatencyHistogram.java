@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * LatencyHistogram records durations in microseconds into logarithmic buckets, so it has a fixed
+ * memory footprint whatever the number of samples.
+ *
+ * Durations below 16us are recorded exactly, above that each power of two is split in 8 buckets,
+ * which gives the percentiles with a precision better than 12.5%.
+ */
+public class LatencyHistogram {
+
+    private static final int EXACT_BUCKETS = 16;
+
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int BUCKET_COUNT = EXACT_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final long[] _buckets;
+
+    private long _count;
+
+    private long _sum;
+
+    private long _max;
+
+    public LatencyHistogram() {
+        this._buckets = new long[BUCKET_COUNT];
+    }
+
+    /**
+     * copy of another histogram, by example to keep its state at a given time
+     */
+    public LatencyHistogram(LatencyHistogram other) {
+        synchronized (other) {
+            this._buckets = other._buckets.clone();
+            this._count = other._count;
+            this._sum = other._sum;
+            this._max = other._max;
+        }
+    }
+
+    /**
+     * record a duration
+     *
+     * @param micros duration in microseconds, negative durations are recorded as 0
+     */
+    public synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        _buckets[bucketIndex(micros)]++;
+        _count++;
+        _sum += micros;
+        if (micros > _max) {
+            _max = micros;
+        }
+    }
+
+    public synchronized long getCount() {
+        return _count;
+    }
+
+    public synchronized long getMax() {
+        return _max;
+    }
+
+    public synchronized long getMean() {
+        return _count > 0 ? _sum / _count : 0;
+    }
+
+    /**
+     * retrieve the duration under which a percentage of the samples are
+     *
+     * @param percentile between 0 and 100, by example 50 for the median
+     * @return the duration in microseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        long value = 0;
+        if (_count > 0) {
+            long target = (long) Math.ceil(_count * percentile / 100.0);
+            if (target < 1) {
+                target = 1;
+            }
+            long cumulated = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                cumulated += _buckets[i];
+                if (cumulated >= target) {
+                    value = Math.min(bucketUpperBound(i), _max);
+                    break;
+                }
+            }
+        }
+        return value;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            _buckets[i] = 0;
+        }
+        _count = 0;
+        _sum = 0;
+        _max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + _count + " p50=" + getPercentile(50) + "us p99=" + getPercentile(99)
+                + "us max=" + _max + "us";
+    }
+
+    private static int bucketIndex(long value) {
+        int index;
+        if (value < EXACT_BUCKETS) {
+            index = (int) value;
+        } else {
+            int octave = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (octave - 3)) & (SUB_BUCKETS - 1);
+            index = EXACT_BUCKETS + (octave - 4) * SUB_BUCKETS + sub;
+        }
+        return index;
+    }
+
+    private static long bucketUpperBound(int index) {
+        long bound;
+        if (index < EXACT_BUCKETS) {
+            bound = index;
+        } else {
+            int octave = (index - EXACT_BUCKETS) / SUB_BUCKETS + 4;
+            int sub = (index - EXACT_BUCKETS) % SUB_BUCKETS;
+            long lower = ((long) (SUB_BUCKETS + sub)) << (octave - 3);
+            bound = lower + (1L << (octave - 3)) - 1;
+        }
+        return bound;
+    }
+}
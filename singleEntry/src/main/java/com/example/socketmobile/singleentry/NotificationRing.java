@@ -0,0 +1,267 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDecodedData;
+import com.socketmobile.scanapi.ISktScanObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NotificationRing is a lock-free ring buffer handing the notifications over from the ScanAPI
+ * consumer (the only producer) to the notification dispatch thread (the only consumer). The
+ * commands completed without going to the device are handed over by the thread completing them,
+ * ScanApiHelper serializes these producers with its notice lock.
+ *
+ * The slots are allocated once, the producer copies a notice into the next free slot and the
+ * consumer copies it out, so nothing is allocated per notification.
+ *
+ * When the ring is full the overflow policy decides what happens to a decoded data notice:
+ * <li> OVERFLOW_BLOCK: the producer waits for a free slot
+ * <li> OVERFLOW_DROP_OLDEST: the oldest notice is dropped if it is a decoded data
+ * <li> OVERFLOW_DROP: the new decoded data is dropped and counted
+ * <br>
+ * The other notices (arrival, removal, command completion...) are never dropped, the producer
+ * waits for a free slot whatever the policy.
+ */
+class NotificationRing {
+
+    public static final int OVERFLOW_BLOCK = 0;
+
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    public static final int OVERFLOW_DROP = 2;
+
+    // how long the producer waits before checking again for a free slot
+    private static final long PRODUCER_WAIT_NANOS = 50000;
+
+    /**
+     * a notification to deliver to the application
+     */
+    static class Notice {
+
+        public static final int kindNone = 0;
+
+        public static final int kindDeviceArrival = 1;
+
+        public static final int kindDeviceRemoval = 2;
+
+        public static final int kindError = 3;
+
+        public static final int kindDecodedData = 4;
+
+        public static final int kindCommandComplete = 5;
+
+        public static final int kindTerminated = 6;
+
+        public static final int kindErrorRetrievingScanObject = 7;
+
+        public static final int kindCommandTimeout = 8;
+
+        // a command completed without going to the device, delivered with its own ScanObject
+        public static final int kindCommandCompleteLocally = 9;
+
+        int kind;
+
+        long result;
+
+        // System.nanoTime() when the ScanObject has been retrieved and handled
+        long receivedTime;
+
+        long handledTime;
+
+        DeviceInfo deviceInfo;
+
+        ISktScanDecodedData decodedData;
+
+        CommandContext command;
+
+        // ScanObject to release once the notice has been delivered, if any
+        ISktScanObject scanObject;
+
+        void copyFrom(Notice notice) {
+            kind = notice.kind;
+            result = notice.result;
+            receivedTime = notice.receivedTime;
+            handledTime = notice.handledTime;
+            deviceInfo = notice.deviceInfo;
+            decodedData = notice.decodedData;
+            command = notice.command;
+            scanObject = notice.scanObject;
+        }
+
+        void clear() {
+            kind = kindNone;
+            result = 0;
+            receivedTime = 0;
+            handledTime = 0;
+            deviceInfo = null;
+            decodedData = null;
+            command = null;
+            scanObject = null;
+        }
+
+        boolean isDroppable() {
+            return kind == kindDecodedData;
+        }
+    }
+
+    private final Notice[] _slots;
+
+    private final int _mask;
+
+    private final int _overflowPolicy;
+
+    // next slot to write, only modified by the producer
+    private final AtomicLong _head = new AtomicLong();
+
+    // next slot to read, modified by the consumer and by the producer dropping the oldest notice
+    private final AtomicLong _tail = new AtomicLong();
+
+    private final AtomicLong _dropped = new AtomicLong();
+
+    private volatile Thread _consumerThread;
+
+    private volatile boolean _consumerWaiting;
+
+    /**
+     * @param capacity       number of notices the ring can hold, rounded up to a power of 2
+     * @param overflowPolicy one of the OVERFLOW_ constants
+     */
+    public NotificationRing(int capacity, int overflowPolicy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        _slots = new Notice[size];
+        for (int i = 0; i < size; i++) {
+            _slots[i] = new Notice();
+        }
+        _mask = size - 1;
+        _overflowPolicy = overflowPolicy;
+    }
+
+    public int getCapacity() {
+        return _slots.length;
+    }
+
+    public int size() {
+        return (int) (_head.get() - _tail.get());
+    }
+
+    /**
+     * number of decoded data notices dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * add a notice in the ring, this must only be called by the producer thread.
+     *
+     * @param notice  notice to copy in the ring
+     * @param evicted receives the oldest notice if it has been dropped to make some room, its
+     *                kind is set to kindNone otherwise. The producer is in charge of releasing its
+     *                ScanObject.
+     * @return false if the notice has been dropped, in which case the producer keeps the ownership
+     * of its ScanObject
+     */
+    public boolean offer(Notice notice, Notice evicted) {
+        evicted.clear();
+        long head = _head.get();
+        for (; ; ) {
+            long tail = _tail.get();
+            if (head - tail < _slots.length) {
+                break;
+            }
+            if (notice.isDroppable()) {
+                if (_overflowPolicy == OVERFLOW_DROP) {
+                    _dropped.incrementAndGet();
+                    return false;
+                }
+                if (_overflowPolicy == OVERFLOW_DROP_OLDEST) {
+                    Notice oldest = _slots[(int) tail & _mask];
+                    // the oldest notice might be read at the same time by the consumer
+                    // whoever moves the tail first owns it
+                    if (oldest.isDroppable()) {
+                        evicted.copyFrom(oldest);
+                        if (_tail.compareAndSet(tail, tail + 1)) {
+                            _dropped.incrementAndGet();
+                            break;
+                        }
+                        evicted.clear();
+                        continue;
+                    }
+                }
+            }
+            wakeUpConsumer();
+            LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+        }
+        _slots[(int) head & _mask].copyFrom(notice);
+        _head.set(head + 1);
+        if (_consumerWaiting) {
+            wakeUpConsumer();
+        }
+        return true;
+    }
+
+    /**
+     * retrieve the oldest notice of the ring, this must only be called by the consumer thread.
+     *
+     * @param notice receives a copy of the oldest notice
+     * @return false if the ring is empty
+     */
+    public boolean poll(Notice notice) {
+        for (; ; ) {
+            long tail = _tail.get();
+            if (tail == _head.get()) {
+                return false;
+            }
+            Notice slot = _slots[(int) tail & _mask];
+            notice.copyFrom(slot);
+            if (_tail.compareAndSet(tail, tail + 1)) {
+                return true;
+            }
+            // the producer dropped this notice in the meantime, try the next one
+        }
+    }
+
+    /**
+     * wait for a notice to be available, this must only be called by the consumer thread.
+     *
+     * @param notice receives a copy of the oldest notice
+     */
+    public void take(Notice notice) {
+        _consumerThread = Thread.currentThread();
+        while (!poll(notice)) {
+            _consumerWaiting = true;
+            // check again after publishing the waiting flag, the producer
+            // might have added a notice without seeing the flag
+            if (_tail.get() == _head.get()) {
+                LockSupport.park(this);
+            }
+            _consumerWaiting = false;
+        }
+    }
+
+    private void wakeUpConsumer() {
+        Thread consumer = _consumerThread;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * ObjectPool keeps the objects released for a later use, so the objects needed for each
+ * command are not allocated over and over.
+ *
+ * The pool holds at most its capacity, the objects released when it is full are left to the
+ * garbage collector. It counts the objects it had to create, which stops increasing once the
+ * application has reached its steady state.
+ */
+abstract class ObjectPool<T> {
+
+    private final Object[] _free;
+
+    private int _freeCount;
+
+    private long _created;
+
+    private long _reused;
+
+    public ObjectPool(int capacity) {
+        _free = new Object[Math.max(1, capacity)];
+        _freeCount = 0;
+    }
+
+    /**
+     * create a new object when the pool is empty
+     */
+    protected abstract T create();
+
+    /**
+     * retrieve an object from the pool, or a new one if the pool is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        synchronized (this) {
+            if (_freeCount > 0) {
+                _freeCount--;
+                T object = (T) _free[_freeCount];
+                _free[_freeCount] = null;
+                _reused++;
+                return object;
+            }
+            _created++;
+        }
+        return create();
+    }
+
+    /**
+     * give an object back to the pool, it must not be used anymore by the caller
+     */
+    public synchronized void release(T object) {
+        if (_freeCount < _free.length) {
+            _free[_freeCount++] = object;
+        }
+    }
+
+    /**
+     * number of objects created because the pool was empty
+     */
+    public synchronized long getCreatedCount() {
+        return _created;
+    }
+
+    /**
+     * number of objects acquired from the pool without creating them
+     */
+    public synchronized long getReusedCount() {
+        return _reused;
+    }
+
+    public synchronized int getFreeCount() {
+        return _freeCount;
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanProperty;
+import com.socketmobile.scanapi.ISktScanSymbology;
+
+import java.util.ArrayList;
+
+/**
+ * PropertyCache keeps the values a device has returned to the Gets, so a Get asked again while
+ * the value is still fresh is answered without going over the air.
+ *
+ * Each value expires after the time to live of its property. The values are copied into the
+ * request ScanObject of the Get being answered, so only the Byte, Ulong, String, Array and
+ * Symbology properties can be cached. Only the status of a symbology is cached, its name stays
+ * in the symbology name table of DeviceInfo. The firmware version is not cached since the
+ * Version value of a Get Complete can't be given to a request ScanObject.
+ *
+ * The cache can be written to a compact text and read back, so the values of a device can be
+ * kept by an IPropertyStore once it is disconnected. Only the values living at least
+ * minSavedTtl are written, and the text is only written again once one of them has changed.
+ *
+ * A device only has a few cached properties, so the entries are kept in a list and searched by
+ * their key. An entry stays in the list once its value has been discarded, to hold the next
+ * value of its property without allocating anything.
+ */
+class PropertyCache {
+
+    /**
+     * time to live of a value that never changes while the device is connected
+     */
+    static final long ttlInfinite = Long.MAX_VALUE;
+
+    /**
+     * time to live in milliseconds below which a value is not saved, it would most likely have
+     * expired before being read back
+     */
+    static final long minSavedTtl = 60 * 1000;
+
+    private static class Entry {
+
+        long key;
+
+        // false once the value has been discarded
+        boolean present;
+
+        int type;
+
+        char byteValue;
+
+        // the Ulong value, or the status of a symbology
+        long ulongValue;
+
+        String stringValue;
+
+        char[] arrayValue;
+
+        // System.nanoTime() when the value has been returned by the device
+        long time;
+
+        // time to live in nanoseconds, or ttlInfinite
+        long ttl;
+
+        // System.currentTimeMillis() when the value has been returned, to save it
+        long wallTime;
+    }
+
+    private final ArrayList<Entry> _entries;
+
+    // a saved value has changed since the last save
+    private boolean _changed;
+
+    public PropertyCache() {
+        _entries = new ArrayList<>();
+        _changed = false;
+    }
+
+    /**
+     * retrieve the time to live in milliseconds of the values of a property, 0 if the property
+     * is not cached
+     */
+    public static long getDefaultTtl(int propertyId) {
+        long ttl = 0;
+        switch (propertyId) {
+            case ISktScanProperty.propId.kSktScanPropIdBluetoothAddressDevice:
+            case ISktScanProperty.propId.kSktScanPropIdCapabilitiesDevice:
+                ttl = ttlInfinite;
+                break;
+            // these only change with a Set, which invalidates them, or with a
+            // configuration barcode, so they are read again from time to time
+            case ISktScanProperty.propId.kSktScanPropIdFriendlyNameDevice:
+            case ISktScanProperty.propId.kSktScanPropIdLocalDecodeActionDevice:
+            case ISktScanProperty.propId.kSktScanPropIdPostambleDevice:
+            case ISktScanProperty.propId.kSktScanPropIdTimersDevice:
+            case ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice:
+            case ISktScanProperty.propId.kSktScanPropIdSymbologyDevice:
+                ttl = 10 * 60 * 1000;
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdBatteryLevelDevice:
+                ttl = 30 * 1000;
+                break;
+        }
+        return ttl;
+    }
+
+    /**
+     * answer a Get from the cache
+     *
+     * @param request the property of the Get, it receives the cached value
+     * @param now     System.nanoTime()
+     * @return true if the value was in the cache and still fresh
+     */
+    public synchronized boolean get(ISktScanProperty request, long now) {
+        Entry entry = find(getKey(request));
+        if ((entry == null) || (!entry.present)) {
+            return false;
+        }
+        if ((entry.ttl != ttlInfinite) && (now - entry.time >= entry.ttl)) {
+            entry.present = false;
+            return false;
+        }
+        request.setType(entry.type);
+        switch (entry.type) {
+            case ISktScanProperty.types.kSktScanPropTypeByte:
+                request.setByte(entry.byteValue);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeUlong:
+                request.setUlong(entry.ulongValue);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeString:
+                request.getString().setValue(entry.stringValue);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeArray:
+                char[] value = entry.arrayValue.clone();
+                request.getArray().setValue(value, value.length);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                request.getSymbology().setStatus((int) entry.ulongValue);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * keep the value returned by the device to a Get
+     *
+     * @param request  the property of the Get
+     * @param complete the property of the Get Complete
+     * @param ttl      time to live of the value in milliseconds
+     * @param now      System.nanoTime()
+     */
+    public synchronized void put(ISktScanProperty request, ISktScanProperty complete, long ttl,
+            long now) {
+        int type = complete.getType();
+        String stringValue = null;
+        char[] arrayValue = null;
+        int length = 0;
+        switch (type) {
+            case ISktScanProperty.types.kSktScanPropTypeByte:
+            case ISktScanProperty.types.kSktScanPropTypeUlong:
+            case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeString:
+                stringValue = complete.getString().getValue();
+                if (stringValue == null) {
+                    return;
+                }
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeArray:
+                arrayValue = complete.getArray().getValue();
+                if (arrayValue == null) {
+                    return;
+                }
+                length = Math.min(complete.getArray().getLength(), arrayValue.length);
+                break;
+            default:
+                return;
+        }
+
+        long key = getKey(request);
+        Entry entry = find(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.key = key;
+            _entries.add(entry);
+        }
+        boolean wasSaved = entry.present && isSaved(entry);
+        boolean same = entry.present && (entry.type == type);
+        entry.type = type;
+        switch (type) {
+            case ISktScanProperty.types.kSktScanPropTypeByte:
+                same = same && (entry.byteValue == complete.getByte());
+                entry.byteValue = complete.getByte();
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeUlong:
+                same = same && (entry.ulongValue == complete.getUlong());
+                entry.ulongValue = complete.getUlong();
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeString:
+                same = same && stringValue.equals(entry.stringValue);
+                entry.stringValue = stringValue;
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeArray:
+                if ((entry.arrayValue == null) || (entry.arrayValue.length != length)) {
+                    entry.arrayValue = new char[length];
+                    same = false;
+                }
+                for (int i = 0; same && (i < length); i++) {
+                    same = entry.arrayValue[i] == arrayValue[i];
+                }
+                System.arraycopy(arrayValue, 0, entry.arrayValue, 0, length);
+                break;
+            case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                int status = complete.getSymbology().getStatus();
+                same = same && (entry.ulongValue == status);
+                entry.ulongValue = status;
+                break;
+        }
+        entry.present = true;
+        entry.time = now;
+        entry.wallTime = System.currentTimeMillis();
+        entry.ttl = ttl < ttlInfinite / 1000000L ? ttl * 1000000L : ttlInfinite;
+        boolean saved = isSaved(entry);
+        if ((saved || wasSaved) && ((!same) || (saved != wasSaved))) {
+            _changed = true;
+        }
+    }
+
+    /**
+     * forget the values of the property of a Set: the value of its symbology if it is the
+     * symbology, otherwise all its values, for each of its sound actions if it is the sound
+     * config
+     *
+     * @return true if a value has been removed
+     */
+    public synchronized boolean invalidate(ISktScanProperty property) {
+        int propertyId = property.getID();
+        boolean symbology = propertyId == ISktScanProperty.propId.kSktScanPropIdSymbologyDevice;
+        long key = symbology ? getKey(property) : 0;
+        boolean removed = false;
+        for (int i = 0; i < _entries.size(); i++) {
+            Entry entry = _entries.get(i);
+            if (entry.present && (symbology ? entry.key == key :
+                    (entry.key >>> 32) == propertyId)) {
+                if (isSaved(entry)) {
+                    _changed = true;
+                }
+                entry.present = false;
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _changed = false;
+    }
+
+    /**
+     * write the values to save if one of them has changed since the last time they were written
+     *
+     * @param now System.nanoTime()
+     * @return the text of save, or null if it would be the same as the last one
+     */
+    public synchronized String saveChanges(long now) {
+        if (!_changed) {
+            return null;
+        }
+        _changed = false;
+        return save(now);
+    }
+
+    /**
+     * write the values still fresh whose time to live is at least minSavedTtl to a text, one
+     * value per item separated by ';'
+     *
+     * Each item is key:type:time:ttl:value with the time being System.currentTimeMillis() when
+     * the device returned the value and the ttl in milliseconds, -1 if infinite. The value is
+     * in hexadecimal for the Byte and Ulong properties and for the status of a symbology,
+     * otherwise each character is written as 4 hexadecimal digits.
+     *
+     * @param now System.nanoTime()
+     */
+    public synchronized String save(long now) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < _entries.size(); i++) {
+            Entry entry = _entries.get(i);
+            if ((!entry.present) || (!isSaved(entry)) ||
+                    ((entry.ttl != ttlInfinite) && (now - entry.time >= entry.ttl))) {
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append(';');
+            }
+            text.append(Long.toHexString(entry.key)).append(':').append(entry.type)
+                    .append(':').append(entry.wallTime).append(':')
+                    .append(entry.ttl != ttlInfinite ? entry.ttl / 1000000L : -1).append(':');
+            switch (entry.type) {
+                case ISktScanProperty.types.kSktScanPropTypeByte:
+                    text.append(Integer.toHexString(entry.byteValue));
+                    break;
+                case ISktScanProperty.types.kSktScanPropTypeUlong:
+                case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                    text.append(Long.toHexString(entry.ulongValue));
+                    break;
+                case ISktScanProperty.types.kSktScanPropTypeString:
+                    appendChars(text, entry.stringValue.toCharArray());
+                    break;
+                case ISktScanProperty.types.kSktScanPropTypeArray:
+                    appendChars(text, entry.arrayValue);
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * read back the values written by save that are still fresh, the values already in the
+     * cache are kept
+     *
+     * @param now     System.nanoTime()
+     * @param wallNow System.currentTimeMillis()
+     */
+    public synchronized void load(String text, long now, long wallNow) {
+        for (String item : text.split(";")) {
+            String[] fields = item.split(":", -1);
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                long key = Long.parseLong(fields[0], 16);
+                Entry entry = new Entry();
+                entry.key = key;
+                entry.present = true;
+                entry.type = Integer.parseInt(fields[1]);
+                entry.wallTime = Long.parseLong(fields[2]);
+                long ttl = Long.parseLong(fields[3]);
+                long age = wallNow - entry.wallTime;
+                // a value from the future means the clock has changed, it can't be trusted
+                Entry current = find(key);
+                if ((age < 0) || ((ttl >= 0) && (age >= ttl)) ||
+                        ((current != null) && current.present)) {
+                    continue;
+                }
+                entry.ttl = ttl >= 0 ? ttl * 1000000L : ttlInfinite;
+                entry.time = now - age * 1000000L;
+                switch (entry.type) {
+                    case ISktScanProperty.types.kSktScanPropTypeByte:
+                        entry.byteValue = (char) Integer.parseInt(fields[4], 16);
+                        break;
+                    case ISktScanProperty.types.kSktScanPropTypeUlong:
+                    case ISktScanProperty.types.kSktScanPropTypeSymbology:
+                        entry.ulongValue = Long.parseLong(fields[4], 16);
+                        break;
+                    case ISktScanProperty.types.kSktScanPropTypeString:
+                        entry.stringValue = new String(parseChars(fields[4]));
+                        break;
+                    case ISktScanProperty.types.kSktScanPropTypeArray:
+                        entry.arrayValue = parseChars(fields[4]);
+                        break;
+                    default:
+                        continue;
+                }
+                if (current != null) {
+                    _entries.set(_entries.indexOf(current), entry);
+                } else {
+                    _entries.add(entry);
+                }
+            } catch (NumberFormatException e) {
+                Debug.MSG(Debug.kLevelWarning, "Ignore an invalid cached property: " + item);
+            }
+        }
+    }
+
+    private static boolean isSaved(Entry entry) {
+        return entry.ttl >= minSavedTtl * 1000000L;
+    }
+
+    private Entry find(long key) {
+        for (int i = 0; i < _entries.size(); i++) {
+            Entry entry = _entries.get(i);
+            if (entry.key == key) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void appendChars(StringBuilder text, char[] value) {
+        for (char c : value) {
+            String digits = Integer.toHexString(c);
+            for (int i = digits.length(); i < 4; i++) {
+                text.append('0');
+            }
+            text.append(digits);
+        }
+    }
+
+    private static char[] parseChars(String digits) {
+        if (digits.length() % 4 != 0) {
+            throw new NumberFormatException("incomplete character");
+        }
+        char[] value = new char[digits.length() / 4];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (char) Integer.parseInt(digits.substring(i * 4, i * 4 + 4), 16);
+        }
+        return value;
+    }
+
+    /**
+     * the sound config and the symbology are the only properties whose Get has a parameter, the
+     * sound action and the symbology ID
+     */
+    private static long getKey(ISktScanProperty request) {
+        long key = (long) request.getID() << 32;
+        if (request.getID() == ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice) {
+            key |= request.getByte();
+        } else if (request.getID() == ISktScanProperty.propId.kSktScanPropIdSymbologyDevice) {
+            ISktScanSymbology symbology = request.getSymbology();
+            key |= symbology.getID() & 0xffffffffL;
+        }
+        return key;
+    }
+}
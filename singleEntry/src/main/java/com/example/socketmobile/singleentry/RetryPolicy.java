@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.SktScanErrors;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * RetryPolicy decides if a command that has failed is sent again and after how long.
+ *
+ * The delay doubles at each retry, from the base delay up to the maximum delay, and a random
+ * jitter takes off up to half of it so the commands failing at the same time don't retry all
+ * together. The number of retries and the delays can be changed for a particular error code,
+ * by example to never retry a command the device doesn't support.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    public static final long DEFAULT_BASE_DELAY = 100;
+
+    public static final long DEFAULT_MAX_DELAY = 2000;
+
+    /**
+     * retries and delays of an error code
+     */
+    private static class Rule {
+
+        final int maxRetries;
+
+        final long baseDelay;
+
+        final long maxDelay;
+
+        Rule(int maxRetries, long baseDelay, long maxDelay) {
+            this.maxRetries = maxRetries;
+            this.baseDelay = Math.max(0, baseDelay);
+            this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        }
+    }
+
+    private Rule _defaultRule;
+
+    private final HashMap<Long, Rule> _rules;
+
+    private final Random _random;
+
+    public RetryPolicy() {
+        _defaultRule = new Rule(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+        _rules = new HashMap<>();
+        _random = new Random();
+        // the device won't support the command any better the next time
+        setRule(SktScanErrors.ESKT_NOTSUPPORTED, 0, 0, 0);
+    }
+
+    /**
+     * set the retries and delays of the errors without a particular rule
+     *
+     * @param maxRetries maximum number of times a command is sent, 0 or 1 to never retry
+     * @param baseDelay  delay before the first retry in milliseconds
+     * @param maxDelay   longest delay between two retries in milliseconds
+     */
+    public synchronized void setDefaultRule(int maxRetries, long baseDelay, long maxDelay) {
+        _defaultRule = new Rule(maxRetries, baseDelay, maxDelay);
+    }
+
+    /**
+     * set the retries and delays of a particular error code
+     *
+     * @param error      the ScanAPI error code
+     * @param maxRetries maximum number of times a command is sent, 0 or 1 to never retry
+     * @param baseDelay  delay before the first retry in milliseconds
+     * @param maxDelay   longest delay between two retries in milliseconds
+     */
+    public synchronized void setRule(long error, int maxRetries, long baseDelay, long maxDelay) {
+        _rules.put(error, new Rule(maxRetries, baseDelay, maxDelay));
+    }
+
+    public synchronized void removeRule(long error) {
+        _rules.remove(error);
+    }
+
+    /**
+     * retrieve how long to wait before sending a failed command again
+     *
+     * @param error   the error code of the command completion
+     * @param retries number of times the command has been sent so far
+     * @return the delay in milliseconds, or -1 if the command should not be retried
+     */
+    public synchronized long getRetryDelay(long error, int retries) {
+        Rule rule = _rules.get(error);
+        if (rule == null) {
+            rule = _defaultRule;
+        }
+        if (retries >= rule.maxRetries) {
+            return -1;
+        }
+        long delay = rule.baseDelay;
+        for (int i = 1; (i < retries) && (delay < rule.maxDelay); i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, rule.maxDelay);
+        if (delay > 1) {
+            delay -= (long) (_random.nextDouble() * (delay / 2));
+        }
+        return delay;
+    }
+}
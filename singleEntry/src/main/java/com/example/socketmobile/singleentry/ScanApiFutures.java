@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * ScanApiFutures is the future based version of the ScanApiHelper post methods: each method
+ * posts the same command and returns a CommandFuture instead of taking a callback.
+ *
+ * This allows to write a sequence of commands as a chain instead of nested callbacks, by
+ * example reading the timers, then changing them, then reading the battery level:
+ * <pre>
+ * futures.getTimersDevice(device).then(new CommandFuture.IContinuation&lt;char[], Void&gt;() {
+ *     public CommandFuture&lt;Void&gt; run(char[] timers) {
+ *         return futures.setTimersDevice(device, mask, 0, 0, connectedTimeout);
+ *     }
+ * })
+ * </pre>
+ * and to send the same command to several devices and wait for all of them with
+ * CommandFuture.allOf.
+ *
+ * A worker thread can also simply wait for the result:
+ * <pre>
+ * CommandFuture&lt;Long&gt; battery = futures.getBattery(device);
+ * if (SktScanErrors.SKTSUCCESS(battery.await(2000))) {
+ *     long level = battery.getValue();
+ * }
+ * </pre>
+ *
+ * For the commands not listed here, ScanApiHelper.newFuture gives a future whose callback can be
+ * given to any post method.
+ */
+public class ScanApiFutures {
+
+    private final ScanApiHelper _scanApiHelper;
+
+    public ScanApiFutures(ScanApiHelper scanApiHelper) {
+        _scanApiHelper = scanApiHelper;
+    }
+
+    public CommandFuture<Integer> getSoftScanStatus() {
+        CommandFuture<Integer> future = _scanApiHelper.newFuture(CommandFuture.BYTE);
+        _scanApiHelper.postGetSoftScanStatus(future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setSoftScanStatus(int status) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetSoftScanStatus(status, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<String> getScanAPIConfiguration(String configurationName) {
+        CommandFuture<String> future = _scanApiHelper.newFuture(CommandFuture.STRING);
+        _scanApiHelper.postGetScanAPIConfiguration(configurationName, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setScanAPIConfiguration(String configurationName, String value) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetScanAPIConfiguration(configurationName, value,
+                future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setConfirmationMode(char mode) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetConfirmationMode(mode, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setDataConfirmation(DeviceInfo deviceInfo) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetDataConfirmation(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<char[]> getBtAddress(DeviceInfo deviceInfo) {
+        CommandFuture<char[]> future = _scanApiHelper.newFuture(CommandFuture.ARRAY);
+        _scanApiHelper.postGetBtAddress(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Long> getBattery(DeviceInfo deviceInfo) {
+        CommandFuture<Long> future = _scanApiHelper.newFuture(CommandFuture.ULONG);
+        _scanApiHelper.postGetBattery(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Integer> getDecodeAction(DeviceInfo deviceInfo) {
+        CommandFuture<Integer> future = _scanApiHelper.newFuture(CommandFuture.BYTE);
+        _scanApiHelper.postGetDecodeAction(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setDecodeAction(DeviceInfo deviceInfo, int decodeVal) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetDecodeAction(deviceInfo, decodeVal, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Long> getCapabilitiesDevice(DeviceInfo deviceInfo) {
+        CommandFuture<Long> future = _scanApiHelper.newFuture(CommandFuture.ULONG);
+        _scanApiHelper.postGetCapabilitiesDevice(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<String> getPostambleDevice(DeviceInfo deviceInfo) {
+        CommandFuture<String> future = _scanApiHelper.newFuture(CommandFuture.STRING);
+        _scanApiHelper.postGetPostambleDevice(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setPostamble(DeviceInfo deviceInfo, String suffix) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetPostamble(deviceInfo, suffix, future.getCallback());
+        return future;
+    }
+
+    /**
+     * @return the status of the symbology, kSktScanSymbologyStatusEnable, Disable or NotSupported
+     */
+    public CommandFuture<Integer> getSymbologyInfo(DeviceInfo deviceInfo, int symbologyId) {
+        CommandFuture<Integer> future = _scanApiHelper.newFuture(CommandFuture.SYMBOLOGY_STATUS);
+        _scanApiHelper.postGetSymbologyInfo(deviceInfo, symbologyId, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setSymbologyInfo(DeviceInfo deviceInfo, int symbologyId,
+            boolean status) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetSymbologyInfo(deviceInfo, symbologyId, status,
+                future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<String> getFriendlyName(DeviceInfo deviceInfo) {
+        CommandFuture<String> future = _scanApiHelper.newFuture(CommandFuture.STRING);
+        _scanApiHelper.postGetFriendlyName(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setFriendlyName(DeviceInfo deviceInfo, String friendlyName) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetFriendlyName(friendlyName, deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setTriggerDevice(DeviceInfo deviceInfo, char action) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetTriggerDevice(deviceInfo, action, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setDisconnectDevice(DeviceInfo deviceInfo) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetDisconnectDevice(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<char[]> getTimersDevice(DeviceInfo deviceInfo) {
+        CommandFuture<char[]> future = _scanApiHelper.newFuture(CommandFuture.ARRAY);
+        _scanApiHelper.postGetTimersDevice(deviceInfo, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setTimersDevice(DeviceInfo deviceInfo, int timerMask,
+            int lockOutTimer, int disconnectedAutoOff, int connectedAutoOff) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetTimersDevice(deviceInfo, timerMask, lockOutTimer,
+                disconnectedAutoOff, connectedAutoOff, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<char[]> getSoundConfigDevice(DeviceInfo deviceInfo, int soundAction) {
+        CommandFuture<char[]> future = _scanApiHelper.newFuture(CommandFuture.ARRAY);
+        _scanApiHelper.postGetSoundConfigDevice(deviceInfo, soundAction, future.getCallback());
+        return future;
+    }
+
+    public CommandFuture<Void> setSoundConfigDevice(DeviceInfo deviceInfo, int soundAction,
+            short[] soundConfig) {
+        CommandFuture<Void> future = _scanApiHelper.newFuture(CommandFuture.NONE);
+        _scanApiHelper.postSetSoundConfigDevice(deviceInfo, soundAction, soundConfig,
+                future.getCallback());
+        return future;
+    }
+}
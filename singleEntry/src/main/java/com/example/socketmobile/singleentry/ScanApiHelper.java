@@ -29,27 +29,30 @@ import com.socketmobile.scanapi.SktScan;
 import com.socketmobile.scanapi.SktScanDeviceType;
 import com.socketmobile.scanapi.SktScanErrors;
 
-import java.util.Enumeration;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * this class provides a set of common functions to retrieve or configure a scanner or ScanAPI and
  * to receive decoded data from a scanner.
  * <p>
  * This helper manages a commands list so the application can send multiple command in a row, the
- * helper will send them one at a time. Each command has an optional callback function that will be
+ * helper will send them one at a time to each device, the commands of different devices being
+ * sent concurrently. Each command has an optional callback function that will be
  * called each time a command complete. By example, to get a device friendly name, use the
  * PostGetFriendlyName method and pass a callback function in which you can update the UI with the
  * newly fetched friendly name. This operation will be completely asynchronous.
  * <p>
- * ScanAPI Helper manages a list of device information. Most of the time only one device is
- * connected to the host. This list could be configured to have always one item, that will be a "No
- * device connected" item in the case where there is no device connected, or simply a device name
- * when there is one device connected. Use isDeviceConnected method to know if there is at least
- * one
- * device connected to the host.
+ * ScanAPI Helper manages a registry of device information, indexed by device handle, GUID and
+ * Bluetooth address. Several devices can be connected to the host at the same time, each one has
+ * its own DeviceInfo, commands queue, property cache and metrics, and the decoded data are
+ * notified with the DeviceInfo of the device that has read them, so a confirmation or a setting
+ * can be sent back to that device. The devices list could be configured to have always one item,
+ * that will be a "No device connected" item in the case where there is no device connected. Use
+ * isDeviceConnected method to know if there is at least one device connected to the host.
  * <br>
  * Common usage scenario of ScanAPIHelper:
  * <br>
@@ -129,11 +132,155 @@ public class ScanApiHelper {
          * @param result contains the retrieval error code
          */
         void onErrorRetrievingScanObject(long result);
+
+        /**
+         * called when the command queue starts refusing commands because it has reached its
+         * capacity, see setCommandQueueCapacity. This is called once per saturation by the thread
+         * posting the command refused.
+         *
+         * @param deviceInfo the device whose commands are refused, or null if the whole queue is
+         *                   full
+         * @param size       number of commands in the queue of the device, or in the whole queue
+         * @param capacity   capacity reached
+         */
+        void onCommandQueueSaturated(DeviceInfo deviceInfo, int size, int capacity);
     }
 
-    public final int MAX_RETRIES = 5;
+    /**
+     * the ScanObjects are consumed by a timer task polling ScanAPI every 200ms (default)
+     */
+    public static final int CONSUMER_TIMER = 0;
+
+    /**
+     * the ScanObjects are consumed by a dedicated thread blocking in WaitForScanObject, the
+     * commands are sent as soon as they are posted
+     */
+    public static final int CONSUMER_EVENT_PUMP = 1;
+
+    /**
+     * when the notification ring is full, the consumer waits for the application to catch up
+     */
+    public static final int DISPATCH_OVERFLOW_BLOCK = NotificationRing.OVERFLOW_BLOCK;
+
+    /**
+     * when the notification ring is full, the oldest decoded data is dropped
+     */
+    public static final int DISPATCH_OVERFLOW_DROP_OLDEST = NotificationRing.OVERFLOW_DROP_OLDEST;
+
+    /**
+     * when the notification ring is full, the new decoded data is dropped and counted
+     */
+    public static final int DISPATCH_OVERFLOW_DROP = NotificationRing.OVERFLOW_DROP;
+
+    /**
+     * when the command queue is full, the new command is refused and its callback receives
+     * ERROR_QUEUE_FULL
+     */
+    public static final int QUEUE_OVERFLOW_REJECT = 0;
+
+    /**
+     * when the command queue is full, the oldest background command not sent yet is removed to
+     * make room for the new one, its callback receives ERROR_QUEUE_FULL. The new command is
+     * refused if there is no background command to remove.
+     */
+    public static final int QUEUE_OVERFLOW_DROP_OLDEST_BACKGROUND = 1;
+
+    /**
+     * when the command queue is full, the thread posting the command waits for some room up to
+     * a timeout, then the command is refused. The ScanAPI consumer and the command callbacks
+     * never wait, their commands are refused right away.
+     */
+    public static final int QUEUE_OVERFLOW_BLOCK = 2;
+
+    /**
+     * result of a command whose completion has not been received before its deadline, see
+     * getResult
+     */
+    public static final long ERROR_COMMAND_TIMEOUT = -1000;
+
+    /**
+     * result of a symbology batch or a device profile stopped before its end, typically because
+     * the device has been removed
+     */
+    public static final long ERROR_BATCH_CANCELLED = -1001;
+
+    /**
+     * result of a command cancelled through its CommandFuture
+     */
+    public static final long ERROR_COMMAND_CANCELLED = -1002;
+
+    /**
+     * result of a device profile whose settings read back are not the ones applied
+     */
+    public static final long ERROR_PROFILE_MISMATCH = -1003;
+
+    /**
+     * result of a command refused or dropped because the command queue is full
+     */
+    public static final long ERROR_QUEUE_FULL = -1004;
+
+    /**
+     * how long a command waits for its completion by default, in milliseconds
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT = 15000;
+
+    // number of request ScanObjects and commands kept for reuse
+    private static final int POOL_CAPACITY = 64;
+
+    // how long the event pump blocks in WaitForScanObject when there is no traffic
+    private static final long EVENT_PUMP_WAIT_TIMEOUT = 5000;
+
+    // period of the timer consumer without adaptive scheduling, in milliseconds
+    private static final long TIMER_CONSUMER_PERIOD = 200;
+
+    private final CommandQueue _commandContexts;
+
+    // commands ready to be sent, only used by sendNextCommand which holds its lock while sending
+    private final ArrayList<CommandContext> _readyCommands;
+
+    // deadlines of the commands in flight, synchronized with _commandContexts
+    private final DeadlineWheel _commandDeadlines;
+
+    // commands whose deadline has passed, only used by expireCommands
+    private final ArrayList<CommandContext> _expiredCommands;
+
+    // commands completed without going to the device, waiting for their callback to be delivered
+    private final ArrayList<CommandContext> _localCompletions;
+
+    // a thread is delivering the local completions, guarded by _localCompletions
+    private boolean _deliveringLocalCompletions;
+
+    private final HashMap<Integer, Long> _commandTimeouts;
+
+    private long _defaultCommandTimeout;
+
+    private volatile RetryPolicy _retryPolicy;
+
+    // time to live of the cached values of the properties not using their default one
+    private final HashMap<Integer, Long> _propertyCacheTtls;
+
+    // keeps the cached values of the devices once they are disconnected
+    private volatile IPropertyStore _propertyStore;
+
+    // settings set on each device, applied again when the device reconnects
+    private final SettingsJournal _settingsJournal;
+
+    private volatile boolean _settingsReplay;
+
+    private volatile DeviceProfile.ICallback _settingsReplayCallback;
 
-    private final Vector<CommandContext> _commandContexts;
+    // what addCommand does when the queue is full, guarded by the queue lock
+    private int _queueOverflowPolicy;
+
+    private long _queueBlockTimeout;
+
+    // request ScanObjects and commands reused from one command to the next
+    private final ObjectPool<ISktScanObject> _scanObjectPool;
+
+    private final ObjectPool<CommandContext> _commandPool;
+
+    // symbology batches and device profiles in progress
+    private final ArrayList<IDeviceOperation> _deviceOperations;
 
     private ISktScanApi _scanApi;
 
@@ -141,24 +288,110 @@ public class ScanApiHelper {
 
     private ScanApiHelperNotification _notification;
 
-    private Timer _scanApiConsumer;
+    private int _consumerMode;
+
+    private int _maxScanObjectsPerTick;
+
+    private boolean _adaptiveScheduling;
+
+    private final ConsumerScheduler _consumerScheduler;
+
+    private TimerConsumer _scanApiConsumer;
+
+    private volatile EventPump _eventPump;
 
     private ISktScanObject[] _scanObjReceived;
 
-    private final Vector<DeviceInfo> _devicesList;
-// maintain a list of connected device (current only one scanner at a time)
+    // System.nanoTime() when WaitForScanObject returned the ScanObject being handled
+    private long _scanObjReceivedTime;
+
+    // receive time of the decoded data being notified to the application
+    private long _decodedDataTimestamp;
+
+    private final ScanLatency _scanLatency;
+
+    private final CommandMetrics _commandMetrics;
+
+    private boolean _dispatchNotifications;
+
+    private int _dispatchCapacity;
+
+    private int _dispatchOverflowPolicy;
+
+    private volatile NotificationDispatcher _dispatcher;
 
+    // thread running the consumer, either the timer thread or the event pump
+    private volatile Thread _consumerThread;
+
+    private volatile long _droppedNotifications;
+
+    // notice prepared before being delivered or handed over to the dispatcher
+    private final NotificationRing.Notice _notice;
+
+    private final NotificationRing.Notice _evictedNotice;
+
+    private final ReentrantLock _noticeLock;
+
+    // true when the ScanObject being handled has been handed over to the dispatcher
+    private boolean _scanObjHandedOver;
+
+    // the devices connected, read without lock for each decoded data
+    private final DeviceRegistry _devices;
+
+    // item displayed in the devices list when there is no device connected
     private DeviceInfo _noDeviceConnected;
 
     private char _dataConfirmationMode =
             ISktScanProperty.values.confirmationMode.kSktScanDataConfirmationModeDevice;
 
     public ScanApiHelper() {
-        _commandContexts = new Vector<>();
+        _commandContexts = new CommandQueue();
+        _readyCommands = new ArrayList<>();
+        _commandDeadlines = new DeadlineWheel(DeadlineWheel.defaultTickDuration,
+                DeadlineWheel.defaultWheelSize);
+        _expiredCommands = new ArrayList<>();
+        _localCompletions = new ArrayList<>();
+        _commandTimeouts = new HashMap<>();
+        _defaultCommandTimeout = DEFAULT_COMMAND_TIMEOUT;
+        _retryPolicy = new RetryPolicy();
+        _propertyCacheTtls = new HashMap<>();
+        _deviceOperations = new ArrayList<>();
+        _queueOverflowPolicy = QUEUE_OVERFLOW_REJECT;
+        _settingsJournal = new SettingsJournal();
+        _settingsReplay = true;
+        _settingsReplayCallback = null;
+        _queueBlockTimeout = 0;
+        _scanObjectPool = new ObjectPool<ISktScanObject>(POOL_CAPACITY) {
+
+            @Override
+            protected ISktScanObject create() {
+                return SktClassFactory.createScanObject();
+            }
+        };
+        _commandPool = new ObjectPool<CommandContext>(POOL_CAPACITY) {
+
+            @Override
+            protected CommandContext create() {
+                return new CommandContext();
+            }
+        };
         _scanApi = SktClassFactory.createScanApiInstance();
+        _commandMetrics = new CommandMetrics();
+        _commandMetrics.setDevice(_scanApi, CommandMetrics.SCANAPI_NAME,
+                CommandMetrics.SCANAPI_NAME);
         _notification = null;
+        _consumerMode = CONSUMER_TIMER;
+        _maxScanObjectsPerTick = 1;
+        _adaptiveScheduling = false;
+        _consumerScheduler = new ConsumerScheduler(ConsumerScheduler.defaultMinInterval,
+                ConsumerScheduler.defaultMaxInterval);
         _scanObjReceived = new ISktScanObject[1];
-        _devicesList = new Vector<>();
+        _scanLatency = new ScanLatency();
+        _dispatchNotifications = false;
+        _notice = new NotificationRing.Notice();
+        _evictedNotice = new NotificationRing.Notice();
+        _noticeLock = new ReentrantLock();
+        _devices = new DeviceRegistry();
         _noDeviceConnected = new DeviceInfo("", null,
                 (long) SktScanDeviceType.kSktScanDeviceTypeNone);
         _scanApiOpen = false;
@@ -172,6 +405,298 @@ public class ScanApiHelper {
         _notification = notification;
     }
 
+    /**
+     * select how the ScanObjects are consumed from ScanAPI, either CONSUMER_TIMER or
+     * CONSUMER_EVENT_PUMP. This must be called before opening ScanAPI.
+     */
+    public void setConsumerMode(int consumerMode) {
+        _consumerMode = consumerMode;
+    }
+
+    public int getConsumerMode() {
+        return _consumerMode;
+    }
+
+    /**
+     * set how many ScanObjects the consumer handles each time it runs. By default only one
+     * ScanObject is handled per tick, a bigger value allows to drain a burst of events coming
+     * from several scanners at once. The next command is sent once the batch has been handled.
+     *
+     * @param maxScanObjects maximum number of ScanObjects to handle per tick, at least 1
+     */
+    public void setMaxScanObjectsPerTick(int maxScanObjects) {
+        _maxScanObjectsPerTick = Math.max(1, maxScanObjects);
+    }
+
+    public int getMaxScanObjectsPerTick() {
+        return _maxScanObjectsPerTick;
+    }
+
+    /**
+     * set how long a pending command waits before gaining one priority level. The interactive
+     * commands (confirmation, trigger) are sent before the configuration commands, which are sent
+     * before the background queries (symbology, battery, firmware), unless a command of a lower
+     * priority has been waiting for too long.
+     *
+     * @param agingPeriod in milliseconds, 2 seconds by default
+     */
+    public void setCommandAgingPeriod(long agingPeriod) {
+        synchronized (_commandContexts) {
+            _commandContexts.setAgingPeriod(agingPeriod);
+        }
+    }
+
+    /**
+     * the settings set successfully on a device (postamble, decode action, timers, sound
+     * configurations and symbologies) are recorded by device GUID. When the device reconnects,
+     * the settings it doesn't have anymore are applied again as one batch, before the device
+     * arrival is notified. This is enabled by default.
+     *
+     * @param enable   false to not apply the settings again
+     * @param callback receives the outcome of each replay, can be null
+     */
+    public void setSettingsReplay(boolean enable, DeviceProfile.ICallback callback) {
+        _settingsReplay = enable;
+        _settingsReplayCallback = callback;
+    }
+
+    /**
+     * forget the settings recorded for all the devices
+     */
+    public void clearSettingsJournal() {
+        _settingsJournal.clear();
+    }
+
+    /**
+     * bound the command queue, so a caller posting commands faster than a slow or absent device
+     * can handle them doesn't grow the queue without limit. The queue is not bounded by default.
+     *
+     * @param deviceCapacity maximum number of commands of a device, 0 for no limit
+     * @param capacity       maximum number of commands of all the devices, 0 for no limit
+     * @param overflowPolicy what to do with a new command when the queue is full:
+     *                       QUEUE_OVERFLOW_REJECT, QUEUE_OVERFLOW_DROP_OLDEST_BACKGROUND or
+     *                       QUEUE_OVERFLOW_BLOCK
+     * @param blockTimeout   how long QUEUE_OVERFLOW_BLOCK waits for some room, in milliseconds
+     */
+    public void setCommandQueueCapacity(int deviceCapacity, int capacity, int overflowPolicy,
+            long blockTimeout) {
+        synchronized (_commandContexts) {
+            _commandContexts.setCapacity(deviceCapacity, capacity);
+            _queueOverflowPolicy = overflowPolicy;
+            _queueBlockTimeout = Math.max(0, blockTimeout);
+        }
+    }
+
+    /**
+     * enable or disable the adaptive scheduling of the timer consumer. When enabled, the consumer
+     * period drops to minInterval as long as there are events or pending commands, and it doubles
+     * at each idle tick up to maxInterval. When disabled the consumer runs every 200ms. This must
+     * be called before opening ScanAPI and has no effect with the event pump consumer.
+     * <p>
+     * Only the commands posted wake the consumer up, ScanAPI can't signal a decoded data, which
+     * is retrieved at the next tick. The maxInterval is therefore capped at 200ms, so the first
+     * scan after an idle period doesn't wait longer than with the fixed period.
+     *
+     * @param minInterval shortest consumer period in milliseconds
+     * @param maxInterval longest consumer period in milliseconds, at most 200ms
+     */
+    public void setAdaptiveScheduling(boolean enable, long minInterval, long maxInterval) {
+        if (maxInterval > TIMER_CONSUMER_PERIOD) {
+            Debug.MSG(Debug.kLevelWarning, "The consumer period is capped at " +
+                    TIMER_CONSUMER_PERIOD + "ms instead of " + maxInterval + "ms");
+            maxInterval = TIMER_CONSUMER_PERIOD;
+        }
+        _adaptiveScheduling = enable;
+        _consumerScheduler.setLimits(Math.min(minInterval, maxInterval), maxInterval);
+    }
+
+    public boolean isAdaptiveScheduling() {
+        return _adaptiveScheduling;
+    }
+
+    /**
+     * current period of the timer consumer in milliseconds, or 0 with the event pump consumer
+     * which doesn't poll ScanAPI but waits for its ScanObjects
+     */
+    public long getCurrentPollInterval() {
+        long interval = TIMER_CONSUMER_PERIOD;
+        if (_consumerMode == CONSUMER_EVENT_PUMP) {
+            interval = 0;
+        } else if (_adaptiveScheduling) {
+            interval = _consumerScheduler.getInterval();
+        }
+        return interval;
+    }
+
+    /**
+     * smoothed number of ScanObjects received from ScanAPI per second
+     */
+    public double getEventRate() {
+        return _consumerScheduler.getEventRate();
+    }
+
+    /**
+     * set how long a command waits for its completion before its callback is called with the
+     * ERROR_COMMAND_TIMEOUT result, so the next commands of the device can be sent
+     *
+     * @param timeout in milliseconds, 0 to wait for the completion forever
+     */
+    public void setDefaultCommandTimeout(long timeout) {
+        synchronized (_commandTimeouts) {
+            _defaultCommandTimeout = timeout;
+        }
+    }
+
+    /**
+     * set the timeout of the commands of a particular property, overriding the default timeout
+     *
+     * @param propertyId the ScanAPI property ID, by example kSktScanPropIdSymbologyDevice
+     * @param timeout    in milliseconds, 0 to wait for the completion forever
+     */
+    public void setCommandTimeout(int propertyId, long timeout) {
+        synchronized (_commandTimeouts) {
+            _commandTimeouts.put(propertyId, timeout);
+        }
+    }
+
+    public long getCommandTimeout(int propertyId) {
+        synchronized (_commandTimeouts) {
+            Long timeout = _commandTimeouts.get(propertyId);
+            return timeout != null ? timeout : _defaultCommandTimeout;
+        }
+    }
+
+    /**
+     * set how long the value returned by a device to the Get of a property is used to answer the
+     * next Gets of this property without asking the device again. A Set of the property or the
+     * device removal discards the value. By default the Bluetooth address and the capabilities
+     * are kept while the device is connected, the battery level for 30 seconds and the settings
+     * for 10 minutes.
+     *
+     * @param propertyId the ScanAPI property ID, by example kSktScanPropIdBatteryLevelDevice
+     * @param ttl        in milliseconds, 0 to always ask the device
+     */
+    public void setPropertyCacheTtl(int propertyId, long ttl) {
+        synchronized (_propertyCacheTtls) {
+            _propertyCacheTtls.put(propertyId, ttl);
+        }
+    }
+
+    public long getPropertyCacheTtl(int propertyId) {
+        synchronized (_propertyCacheTtls) {
+            Long ttl = _propertyCacheTtls.get(propertyId);
+            return ttl != null ? ttl : PropertyCache.getDefaultTtl(propertyId);
+        }
+    }
+
+    /**
+     * set where the cached property values of each device are saved, so a device reconnecting,
+     * even after the application has restarted, has its Gets answered from the values it
+     * returned before if they are still fresh. The values are loaded when the device arrives,
+     * before the device arrival is notified, and saved each time they change.
+     *
+     * @param propertyStore the store of the values, null to keep them only while the device is
+     *                      connected
+     */
+    public void setPropertyStore(IPropertyStore propertyStore) {
+        _propertyStore = propertyStore;
+    }
+
+    /**
+     * set the retry policy of the commands that don't have their own, it decides how many
+     * times and after which delay a failed command is sent again. While a command waits for
+     * its retry the commands of the other devices keep being sent.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        _retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return _retryPolicy;
+    }
+
+    /**
+     * getResult
+     *
+     * retrieve the result of a completed command, the command callbacks use this instead of the
+     * ScanObject message result so the commands that have timed out are reported with
+     * ERROR_COMMAND_TIMEOUT, and the commands rejected by a full queue with ERROR_QUEUE_FULL.
+     */
+    public static long getResult(ISktScanObject scanObj) {
+        Object context = scanObj.getProperty().getContext();
+        if (context instanceof CommandContext) {
+            CommandContext command = (CommandContext) context;
+            if (command.isTimedOut()) {
+                return ERROR_COMMAND_TIMEOUT;
+            }
+            if (!SktScanErrors.SKTSUCCESS(command.getRejectedResult())) {
+                return command.getRejectedResult();
+            }
+        }
+        return scanObj.getMessage().getResult();
+    }
+
+    /**
+     * deliver the notifications and the command callbacks from a dedicated thread instead of the
+     * ScanAPI consumer, so a slow application doesn't delay the ScanObjects retrieval nor the
+     * commands sending. The consumer hands the notifications over through a lock-free ring. This
+     * must be called before opening ScanAPI.
+     *
+     * @param enable         true to use a dispatch thread, false to notify from the consumer
+     * @param capacity       number of notifications the ring can hold
+     * @param overflowPolicy what to do with the decoded data when the ring is full: either
+     *                       DISPATCH_OVERFLOW_BLOCK, DISPATCH_OVERFLOW_DROP_OLDEST or
+     *                       DISPATCH_OVERFLOW_DROP. The other notifications are never dropped.
+     */
+    public void setNotificationDispatch(boolean enable, int capacity, int overflowPolicy) {
+        _dispatchNotifications = enable;
+        _dispatchCapacity = capacity;
+        _dispatchOverflowPolicy = overflowPolicy;
+    }
+
+    public boolean isNotificationDispatch() {
+        return _dispatchNotifications;
+    }
+
+    /**
+     * number of decoded data dropped because the application didn't keep up
+     */
+    public long getDroppedNotifications() {
+        long dropped = _droppedNotifications;
+        NotificationDispatcher dispatcher = _dispatcher;
+        if (dispatcher != null) {
+            dropped += dispatcher.getRing().getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * latency histograms of the decoded data, from ScanAPI to the application
+     */
+    public ScanLatency getScanLatency() {
+        return _scanLatency;
+    }
+
+    /**
+     * retrieve a copy of the command queue metrics: the counters, the wait time and the service
+     * time of the commands for each property and each device, and the queue depth
+     */
+    public CommandMetrics.Snapshot getCommandMetrics() {
+        return _commandMetrics.getSnapshot();
+    }
+
+    public void resetCommandMetrics() {
+        _commandMetrics.reset();
+    }
+
+    /**
+     * System.nanoTime() when the decoded data currently notified has been retrieved from ScanAPI.
+     * This is only meaningful while onDecodedData is being called.
+     */
+    public long getDecodedDataTimestamp() {
+        return _decodedDataTimestamp;
+    }
+
     /**
      * specifying a name to display when no device is connected will add a no device connected item
      * in the list with the name specified, otherwise if there is no device connected the list will
@@ -183,35 +708,57 @@ public class ScanApiHelper {
     }
 
     /**
-     * update the friendly name in the list
+     * update the friendly name in the list, the device takes the place of the one with the same
+     * handle
      */
     public void updateDevice(DeviceInfo newDevice) {
-        synchronized (_devicesList) {
-            _devicesList.removeAllElements();
-            _devicesList.addElement(newDevice);
-        }
+        _devices.add(newDevice);
     }
 
     /**
-     * get the list of devices. If there is no device connected and a text has been specified for
-     * when there is no device then the list will contain one item which is the no device in the
-     * list
+     * get a copy of the list of devices, to be displayed. If there is no device connected and a
+     * text has been specified for when there is no device then the list will contain one item
+     * which is the no device in the list
      */
     public Vector getDevicesList() {
-        return _devicesList;
+        List<DeviceInfo> devices = _devices.getDevices();
+        Vector<DeviceInfo> devicesList = new Vector<>(devices);
+        if (devices.isEmpty() && (_noDeviceConnected.getName().length() > 0)) {
+            devicesList.addElement(_noDeviceConnected);
+        }
+        return devicesList;
+    }
+
+    /**
+     * get the devices connected, in the order they have connected. The list can't be modified
+     * and doesn't change when a device connects or disconnects.
+     */
+    public List<DeviceInfo> getDevices() {
+        return _devices.getDevices();
+    }
+
+    /**
+     * retrieve a connected device from the GUID ScanAPI has given it, null if there is none
+     */
+    public DeviceInfo getDeviceInfoByGuid(String guid) {
+        return _devices.getByGuid(guid);
+    }
+
+    /**
+     * retrieve a connected device from its Bluetooth address, null if there is none or if its
+     * address hasn't been retrieved yet with postGetBtAddress
+     *
+     * @param address the Bluetooth address, with or without separators
+     */
+    public DeviceInfo getDeviceInfoByBluetoothAddress(String address) {
+        return _devices.getByBluetoothAddress(address);
     }
 
     /**
      * check if there is a device connected
      */
     boolean isDeviceConnected() {
-        boolean isDeviceConnected = false;
-        synchronized (_devicesList) {
-            if (_devicesList.size() > 0) {
-                isDeviceConnected = !_devicesList.contains(_noDeviceConnected);
-            }
-        }
-        return isDeviceConnected;
+        return _devices.size() > 0;
     }
 
     /**
@@ -227,12 +774,7 @@ public class ScanApiHelper {
      */
     public void open() {
         // make sure the devices list is empty
-        // and if the No Device Connected has a name
-        // then add it into the list
-        _devicesList.removeAllElements();
-        if (_noDeviceConnected.getName().length() > 0) {
-            _devicesList.addElement(_noDeviceConnected);
-        }
+        _devices.clear();
 
         ScanAPIInitialization init = new ScanAPIInitialization(_scanApi, _scanApiInitComplete);
         init.start();
@@ -258,6 +800,7 @@ public class ScanApiHelper {
      *               if all the commands must be removed.
      */
     public void removeCommands(DeviceInfo device) {
+        cancelDeviceOperations(device);
         ISktScanDevice iDevice = null;
         if (device != null) {
             iDevice = device.getSktScanDevice();
@@ -265,29 +808,153 @@ public class ScanApiHelper {
         // remove all the pending command for this device
         synchronized (_commandContexts) {
             if (iDevice != null) {
-                Enumeration enumeration = _commandContexts.elements();
-                while (enumeration.hasMoreElements()) {
-                    CommandContext command = (CommandContext) enumeration.nextElement();
-                    if (command.getScanDevice() == iDevice) {
-                        _commandContexts.removeElement(command);
-                    }
-                }
+                _commandContexts.removeDevice(iDevice);
             } else {
-                _commandContexts.removeAllElements();
+                _commandContexts.clear();
             }
         }
     }
 
+    /**
+     * cancelCommand
+     *
+     * remove from the queue the command posted with this callback if it hasn't been sent yet
+     *
+     * @return true if the command has been cancelled, false if it is already in flight or done
+     */
+    public boolean cancelCommand(ICommandContextCallback callback) {
+        synchronized (_commandContexts) {
+            return _commandContexts.cancel(callback);
+        }
+    }
+
+    /**
+     * newFuture
+     *
+     * create a future for a command, its callback must be given to the post method sending the
+     * command. Cancelling the future removes the command from the queue if it hasn't been sent.
+     *
+     * @param converter extracts the value of the command from its completion ScanObject
+     */
+    public <T> CommandFuture<T> newFuture(CommandFuture.IConverter<T> converter) {
+        final CommandFuture<T> future = new CommandFuture<>(converter, this);
+        future.setOnCancel(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelCommand(future.getCallback());
+            }
+        });
+        return future;
+    }
+
+    /**
+     * isConsumerThread
+     *
+     * check if the current thread is the one consuming the ScanObjects or delivering the
+     * notifications. Such a thread must never wait for a command completion since it is the one
+     * that would deliver it.
+     */
+    public boolean isConsumerThread() {
+        Thread current = Thread.currentThread();
+        return (current == _consumerThread) || (current == _dispatcher);
+    }
+
+    /**
+     * obtainCommand
+     *
+     * retrieve a command from the pool, initialized as a new one
+     */
+    private CommandContext obtainCommand(boolean getOperation, ISktScanObject scanObj,
+            ISktScanDevice scanDevice, DeviceInfo deviceInfo, ICommandContextCallback callback) {
+        CommandContext command = _commandPool.acquire();
+        command.init(getOperation, scanObj, scanDevice, deviceInfo, callback);
+        return command;
+    }
+
+    /**
+     * recycleCommand
+     *
+     * give a completed command and its request ScanObject back to the pools, with the commands
+     * coalesced into it. A command that has timed out is left to the garbage collector since its
+     * completion might still arrive with a reference to it.
+     */
+    private void recycleCommand(CommandContext command) {
+        if (command.isTimedOut()) {
+            return;
+        }
+        ArrayList<CommandContext> coalesced = command.getCoalesced();
+        if (coalesced != null) {
+            for (int i = 0; i < coalesced.size(); i++) {
+                recycleCommand(coalesced.get(i));
+            }
+        }
+        ISktScanObject scanObj = command.getScanObject();
+        if (scanObj != null) {
+            scanObj.getProperty().setContext(null);
+            if (scanObj.getProperty().getType() == ISktScanProperty.types.kSktScanPropTypeObject) {
+                scanObj.getProperty().setObject(null);
+            }
+            _scanObjectPool.release(scanObj);
+        }
+        command.clear();
+        _commandPool.release(command);
+    }
+
+    /**
+     * number of request ScanObjects and commands created since ScanApiHelper exists, this stops
+     * increasing once the application has reached its steady state
+     */
+    public long getAllocatedCommandCount() {
+        return _scanObjectPool.getCreatedCount() + _commandPool.getCreatedCount();
+    }
+
+    /**
+     * cancel the symbology batches and the device profiles of a device, or all of them if the
+     * device is null, since their commands are about to be removed
+     */
+    private void cancelDeviceOperations(DeviceInfo device) {
+        ArrayList<IDeviceOperation> cancelled = new ArrayList<>();
+        synchronized (_deviceOperations) {
+            for (int i = _deviceOperations.size() - 1; i >= 0; i--) {
+                IDeviceOperation operation = _deviceOperations.get(i);
+                if ((device == null) || (operation.getDeviceInfo() == device)) {
+                    _deviceOperations.remove(i);
+                    cancelled.add(operation);
+                }
+            }
+        }
+        // the callbacks are called outside of the lock
+        for (IDeviceOperation operation : cancelled) {
+            operation.cancel();
+        }
+    }
+
+    /**
+     * keep track of an operation in progress so it can be cancelled, and forget the ones that
+     * are finished
+     */
+    private void addDeviceOperation(IDeviceOperation operation) {
+        synchronized (_deviceOperations) {
+            for (int i = _deviceOperations.size() - 1; i >= 0; i--) {
+                if (_deviceOperations.get(i).isFinished()) {
+                    _deviceOperations.remove(i);
+                }
+            }
+            _deviceOperations.add(operation);
+        }
+    }
+
     /**
      * postGetScanAPIVersion
      *
      * retrieve the ScanAPI Version
      */
     public void postGetScanAPIVersion(ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdVersion);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
-        CommandContext command = new CommandContext(true, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(true, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -295,7 +962,7 @@ public class ScanApiHelper {
      * enable or disable the ScanAPI traces
      */
     public void postSetScanAPITraces(boolean bTracesOn) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdMonitorMode);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeArray);
         char[] value = new char[5];
@@ -310,7 +977,7 @@ public class ScanApiHelper {
         value[4] = (char) lValue;
         newScanObj.getProperty().getArray().setValue(value, 5);
 
-        CommandContext command = new CommandContext(false, newScanObj, _scanApi, null, null);
+        CommandContext command = obtainCommand(false, newScanObj, _scanApi, null, null);
         addCommand(command);
     }
 
@@ -320,10 +987,10 @@ public class ScanApiHelper {
      * retrieve the SoftScan Status
      */
     public void postGetSoftScanStatus(ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSoftScanStatus);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
-        CommandContext command = new CommandContext(true, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(true, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -333,12 +1000,12 @@ public class ScanApiHelper {
      * Enable or disable SoftScan Status.
      */
     public void postSetSoftScanStatus(int status, ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSoftScanStatus);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte((char) status);
 
-        CommandContext command = new CommandContext(false, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -349,11 +1016,11 @@ public class ScanApiHelper {
      */
     public void postGetScanAPIConfiguration(String configurationName,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdConfiguration);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeString);
         newScanObj.getProperty().getString().setValue(configurationName);
-        CommandContext command = new CommandContext(true, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(true, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -364,11 +1031,11 @@ public class ScanApiHelper {
      */
     public void postSetScanAPIConfiguration(String configurationName, String value,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdConfiguration);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeString);
         newScanObj.getProperty().getString().setValue(configurationName + "=" + value);
-        CommandContext command = new CommandContext(false, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -379,12 +1046,12 @@ public class ScanApiHelper {
      * scanner can be triggered again.
      */
     public void postSetConfirmationMode(char mode, ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdDataConfirmationMode);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte(mode);
 
-        CommandContext command = new CommandContext(false, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -399,7 +1066,7 @@ public class ScanApiHelper {
     public void postSetDataConfirmation(DeviceInfo deviceInfo, ICommandContextCallback callback) {
 
         ISktScanDevice device = deviceInfo.getSktScanDevice();
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(
                 ISktScanProperty.propId.kSktScanPropIdDataConfirmationDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeUlong);
@@ -410,19 +1077,10 @@ public class ScanApiHelper {
                         ISktScanProperty.values.dataConfirmation.kSktScanDataConfirmationBeepGood,
                         ISktScanProperty.values.dataConfirmation.kSktScanDataConfirmationLedGreen));
 
-        CommandContext command = new CommandContext(false, newScanObj, device, null, callback);
-        if (_commandContexts.isEmpty()) {
-            addCommand(command);
-        } else {
-            int index = 0;
-            CommandContext pendingCommand = (CommandContext) _commandContexts.elementAt(index);
-            if (pendingCommand.getStatus() == CommandContext.statusNotCompleted) {
-                _commandContexts.insertElementAt(command, index + 1);
-            }
-        }
-
-        // try to see if the confirmation can be sent right away
-        sendNextCommand();
+        // the confirmation is an interactive command, it goes before
+        // the other commands pending for this device
+        CommandContext command = obtainCommand(false, newScanObj, device, null, callback);
+        addCommand(command);
     }
 
     /**
@@ -434,14 +1092,14 @@ public class ScanApiHelper {
     public void postGetBtAddress(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(
                 ISktScanProperty.propId.kSktScanPropIdBluetoothAddressDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
 
     }
@@ -455,13 +1113,13 @@ public class ScanApiHelper {
     public void postGetFirmware(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdVersionDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
 
     }
@@ -475,13 +1133,13 @@ public class ScanApiHelper {
     public void postGetBattery(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdBatteryLevelDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
     }
 
@@ -494,14 +1152,14 @@ public class ScanApiHelper {
     public void postGetDecodeAction(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(
                 ISktScanProperty.propId.kSktScanPropIdLocalDecodeActionDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
 
     }
@@ -515,7 +1173,7 @@ public class ScanApiHelper {
     public void postGetCapabilitiesDevice(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdCapabilitiesDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte(
@@ -523,7 +1181,7 @@ public class ScanApiHelper {
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
 
     }
@@ -537,13 +1195,13 @@ public class ScanApiHelper {
     public void postGetPostambleDevice(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdPostambleDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
     }
 
@@ -557,7 +1215,7 @@ public class ScanApiHelper {
             ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSymbologyDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeSymbology);
         newScanObj.getProperty().getSymbology().setFlags(
@@ -565,7 +1223,7 @@ public class ScanApiHelper {
         newScanObj.getProperty().getSymbology().setID(symbologyId);
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
     }
 
@@ -580,7 +1238,7 @@ public class ScanApiHelper {
         // create and initialize the property to send to the device
         for (int symbologyId = ISktScanSymbology.id.kSktScanSymbologyNotSpecified + 1;
                 symbologyId < ISktScanSymbology.id.kSktScanSymbologyLastSymbolID; symbologyId++) {
-            ISktScanObject newScanObj = SktClassFactory.createScanObject();
+            ISktScanObject newScanObj = _scanObjectPool.acquire();
             newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSymbologyDevice);
             newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeSymbology);
             newScanObj.getProperty().getSymbology().setFlags(
@@ -588,12 +1246,47 @@ public class ScanApiHelper {
             newScanObj.getProperty().getSymbology().setID(symbologyId);
             // add the property and the device to the command context list
             // to send it as soon as it is possible
-            CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo,
+            CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo,
                     callback);
             addCommand(command);
         }
     }
 
+    /**
+     * postGetSymbologyBatch
+     *
+     * retrieve the status of all the symbologies of the scanner as one operation. The requests
+     * are sent back to back, the DeviceInfo symbology table is filled once they have all
+     * completed and the callback receives the progress and one final completion. The batch is
+     * cancelled if the device is removed or its commands are removed.
+     */
+    public void postGetSymbologyBatch(DeviceInfo deviceInfo, SymbologyBatch.ICallback callback) {
+        SymbologyBatch batch = new SymbologyBatch(deviceInfo, callback);
+        addDeviceOperation(batch);
+        for (int symbologyId = SymbologyBatch.firstSymbologyId;
+                symbologyId < SymbologyBatch.lastSymbologyId; symbologyId++) {
+            postGetSymbologyInfo(deviceInfo, symbologyId, batch.onGetSymbology);
+        }
+    }
+
+    /**
+     * postApplyDeviceProfile
+     *
+     * apply all the settings of a profile to the scanner as one operation. The current values
+     * are read first, then the settings that differ are sent back to back and optionally read
+     * back. If one of them fails, the settings already changed are set back to their previous
+     * values. The callback is notified once with the overall result.
+     *
+     * @param verify true to read back the settings once they have been applied
+     */
+    public void postApplyDeviceProfile(DeviceInfo deviceInfo, DeviceProfile profile,
+            boolean verify, DeviceProfile.ICallback callback) {
+        DeviceProfileTransaction transaction = new DeviceProfileTransaction(this, deviceInfo,
+                profile, verify, callback);
+        addDeviceOperation(transaction);
+        transaction.start();
+    }
+
     /**
      * postSetSymbologyInfo
      *
@@ -602,7 +1295,7 @@ public class ScanApiHelper {
     public void postSetSymbologyInfo(DeviceInfo deviceInfo, int Symbology, boolean Status,
             ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSymbologyDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeSymbology);
         newScanObj.getProperty().getSymbology().setFlags(
@@ -616,7 +1309,7 @@ public class ScanApiHelper {
                     .setStatus(ISktScanSymbology.status.kSktScanSymbologyStatusDisable);
         }
 
-        CommandContext command = new CommandContext(false, newScanObj, device, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, device, null, callback);
         command.setSymbologyId(
                 Symbology);// keep the symbology ID because the Set Complete won't return it
         addCommand(command);
@@ -633,12 +1326,12 @@ public class ScanApiHelper {
     public void postGetFriendlyName(DeviceInfo deviceInfo, ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdFriendlyNameDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
         // add the property and the device to the command context list
         // to send it as soon as it is possible
-        CommandContext command = new CommandContext(true, newScanObj, device, deviceInfo, callback);
+        CommandContext command = obtainCommand(true, newScanObj, device, deviceInfo, callback);
         addCommand(command);
     }
 
@@ -650,11 +1343,11 @@ public class ScanApiHelper {
     public void postSetFriendlyName(String friendlyName, DeviceInfo deviceInfo,
             ICommandContextCallback callback) {
         ISktScanDevice device = deviceInfo.getSktScanDevice();
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdFriendlyNameDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeString);
         newScanObj.getProperty().getString().setValue(friendlyName);
-        CommandContext command = new CommandContext(false, newScanObj, device, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, device, null, callback);
         addCommand(command);
     }
 
@@ -666,13 +1359,13 @@ public class ScanApiHelper {
      */
     public void postSetDecodeAction(DeviceInfo device, int decodeVal,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(
                 ISktScanProperty.propId.kSktScanPropIdLocalDecodeActionDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte((char) (decodeVal & 0xffff));
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 null, callback);
         addCommand(command);
     }
@@ -684,12 +1377,12 @@ public class ScanApiHelper {
      */
     public void postSetPostamble(DeviceInfo device, String suffix,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdPostambleDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeString);
         newScanObj.getProperty().getString().setValue(suffix);
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 null, callback);
         addCommand(command);
     }
@@ -703,7 +1396,7 @@ public class ScanApiHelper {
      */
     public void postSetProfileConfigDevice(DeviceInfo device, String hostAddress,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdProfileConfigDevice);
         newScanObj.getProperty().setType(SktScan.helper.SKTRETRIEVESETTYPE(
                 ISktScanProperty.propId.kSktScanPropIdProfileConfigDevice));
@@ -727,7 +1420,7 @@ public class ScanApiHelper {
 
         newScanObj.getProperty().getArray().setValue(valuesProfile, valuesProfile.length);
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -738,14 +1431,14 @@ public class ScanApiHelper {
      * Disconnect the device
      */
     public void postSetDisconnectDevice(DeviceInfo device, ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdDisconnectDevice);
         newScanObj.getProperty().setType(SktScan.helper.SKTRETRIEVESETTYPE(
                 ISktScanProperty.propId.kSktScanPropIdDisconnectDevice));
         newScanObj.getProperty().setByte(
                 (char) ISktScanProperty.values.disconnect.kSktScanDisconnectStartProfile);
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -759,12 +1452,12 @@ public class ScanApiHelper {
      */
     public void postSetOverlayView(DeviceInfo device, Object overlayview,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdOverlayViewDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeObject);
         newScanObj.getProperty().setObject(overlayview);
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -778,12 +1471,12 @@ public class ScanApiHelper {
      */
     public void postSetTriggerDevice(DeviceInfo device, char action,
             ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdTriggerDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte(action);
 
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -799,11 +1492,11 @@ public class ScanApiHelper {
      */
     public void postScanApiAbort(ICommandContextCallback callback) {
         // create and initialize the property to send to the device
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdAbort);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeNone);
 
-        CommandContext command = new CommandContext(false, newScanObj, _scanApi, null, callback);
+        CommandContext command = obtainCommand(false, newScanObj, _scanApi, null, callback);
         addCommand(command);
     }
 
@@ -816,12 +1509,12 @@ public class ScanApiHelper {
      * @param callback callback when the Get Complete is received
      */
     public void postGetTimersDevice(DeviceInfo device, ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdTimersDevice);
         newScanObj.getProperty().setType(SktScan.helper.SKTRETRIEVEGETTYPE(
                 ISktScanProperty.propId.kSktScanPropIdTimersDevice));
 
-        CommandContext command = new CommandContext(true, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(true, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -840,7 +1533,7 @@ public class ScanApiHelper {
      */
     public void postSetTimersDevice(DeviceInfo device, int timerMask, int lockOutTimer,
             int disconnectedAutoOff, int connectedAutoOff, ICommandContextCallback callback) {
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdTimersDevice);
         newScanObj.getProperty().setType(SktScan.helper.SKTRETRIEVESETTYPE(
                 ISktScanProperty.propId.kSktScanPropIdTimersDevice));
@@ -855,7 +1548,7 @@ public class ScanApiHelper {
         deviceTimers[6] = (char) (connectedAutoOff >> 8);
         deviceTimers[7] = (char) (connectedAutoOff);
         newScanObj.getProperty().getArray().setValue(deviceTimers, deviceTimers.length);
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
@@ -870,143 +1563,521 @@ public class ScanApiHelper {
             ICommandContextCallback callback) {
         short[] newSoundConfig = new short[1];
         newSoundConfig[0] = (short) soundAction;
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
         newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice);
         newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeByte);
         newScanObj.getProperty().setByte((char) soundAction);
-        CommandContext command = new CommandContext(true, newScanObj, device.getSktScanDevice(),
+        CommandContext command = obtainCommand(true, newScanObj, device.getSktScanDevice(),
+                device, callback);
+        addCommand(command);
+    }
+
+    /**
+     * set the sound configuration of a particular device for a particular read result
+     *
+     * @param device      to change the actual sound configuration
+     * @param soundAction type of sound to change its configuration
+     * @param soundConfig is an array defining the new sound configuration. The array is
+     *                    a triplet array containing 3 shorts for respectively the frequency (low,
+     *                    medium, high), duration and pause.
+     */
+    public void postSetSoundConfigDevice(DeviceInfo device, int soundAction, short[] soundConfig,
+            ICommandContextCallback callback) {
+        char[] newSoundConfig = new char[(soundConfig.length + 2) * 2];
+        // first short is the soundAction (GOOD or BAD)
+        newSoundConfig[0] = 0;
+        newSoundConfig[1] = (char) soundAction;
+        // second short is the number of triplets (a triplet is frequency,duration and pause)
+        newSoundConfig[2] = 0;
+        newSoundConfig[3] = (char) (soundConfig.length / 3);// frequency+duration+pause
+        // takes each triplet received in input parameter and
+        // add them in the char array
+        int index = 4;
+        for (short config : soundConfig) {
+            newSoundConfig[index++] = (char) (config >> 8);
+            newSoundConfig[index++] = (char) (config & 0x00ff);
+        }
+
+        ISktScanObject newScanObj = _scanObjectPool.acquire();
+        newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice);
+        newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeArray);
+        newScanObj.getProperty().getArray().setValue(newSoundConfig, newSoundConfig.length);
+        CommandContext command = obtainCommand(false, newScanObj, device.getSktScanDevice(),
                 device, callback);
         addCommand(command);
     }
 
+    private void ConvertStringtoCharArray(char[] destination, int destinationOffset,
+            String source) {
+        int count = source.length();
+        int index = 0;
+        for (int i = 0; i < count / 2; i++) {
+            destination[i + destinationOffset] = ConvertToByte(source.substring(index, index + 2));
+            index += 2;
+        }
+    }
+
+    private char ConvertToByte(String substring) {
+        char value = 0;
+        for (int i = 0; i < 2; i++) {
+            value <<= 4;
+            if ((substring.charAt(i) >= '0') && (substring.charAt(i) <= '9')) {
+                value += substring.charAt(i) - '0';
+            } else if ((substring.charAt(i) >= 'A') && (substring.charAt(i) <= 'F')) {
+                value += substring.charAt(i) - 'A';
+                value += 10;
+            } else if ((substring.charAt(i) >= 'a') && (substring.charAt(i) <= 'f')) {
+                value += substring.charAt(i) - 'a';
+                value += 10;
+            }
+        }
+        return value;
+    }
+
+
+    /**
+     * ScanAPI Init Complete callback
+     * <p>
+     * this callback is called when ScanAPI is opened. If the open is successful a consumer is
+     * started to consume ScanObject from ScanAPI, either a timer task or an event pump thread
+     * depending on the consumer mode. This consumer will end during ScanAPI close process once it
+     * receives the ScanAPI Terminate event.
+     */
+    private ScanAPIInitialization.ICallback _scanApiInitComplete
+            = new ScanAPIInitialization.ICallback() {
+
+        public void completed(long result) {
+            if (_notification != null) {
+                _notification.onScanApiInitializeComplete(result);
+            }
+            if (SktScanErrors.SKTSUCCESS(result)) {
+                if (_dispatchNotifications) {
+                    _dispatcher = new NotificationDispatcher(
+                            new NotificationRing(_dispatchCapacity, _dispatchOverflowPolicy));
+                    _dispatcher.start();
+                }
+                if (_consumerMode == CONSUMER_EVENT_PUMP) {
+                    _eventPump = new EventPump();
+                    _eventPump.start();
+                } else {
+                    synchronized (_consumerScheduler) {
+                        _scanApiConsumer = new TimerConsumer();
+                        _scanApiConsumer.start();
+                    }
+                }
+
+                // set the decoded data confirmation mode of the device
+                // the data confirmation mode can be:
+                // kSktScanDataConfirmationModeDevice: the device acks decoded data locally
+                // kSktScanDataConfirmationModeScanApi: ScanAPI acks the decoded data upon reception
+                // kSktScanDataConfirmationModeApp: this app has to ack the decoded data
+                postSetConfirmationMode(_dataConfirmationMode, null);
+            }
+        }
+    };
+
+    /**
+     * EventPump
+     *
+     * Thread blocking in WaitForScanObject until a ScanObject is available, so the ScanObjects
+     * are handled as soon as ScanAPI delivers them. The commands don't wait for this thread to
+     * wake up, they are sent by addCommand as soon as they are posted.
+     */
+    private class EventPump extends Thread {
+
+        public EventPump() {
+            super("ScanApiEventPump");
+        }
+
+        public void run() {
+            while (consumeScanObjects(getEventPumpWaitTimeout())) {
+                // keep consuming until ScanAPI is terminated
+            }
+        }
+    }
+
+    /**
+     * the event pump doesn't wait past the next command deadline or retry, so the timed out
+     * commands are reported on time and the failed commands are sent again on time
+     */
+    private long getEventPumpWaitTimeout() {
+        long timeout = EVENT_PUMP_WAIT_TIMEOUT;
+        synchronized (_commandContexts) {
+            long now = System.nanoTime();
+            long delay = _commandDeadlines.getNextDeadlineDelay(now);
+            if ((delay >= 0) && (delay < timeout)) {
+                timeout = delay;
+            }
+            delay = _commandContexts.getNextRetryDelay(now);
+            if ((delay >= 0) && (delay < timeout)) {
+                timeout = delay;
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * TimerConsumer
+     *
+     * Thread running the consumer every 200ms, or at the period computed by the consumer
+     * scheduler with the adaptive scheduling. Between two ticks it waits on its own monitor, so
+     * a command posted or a local completion wakes it up without allocating a timer task.
+     */
+    private class TimerConsumer extends Thread {
+
+        // the next tick must run right away
+        private boolean _wakeUp;
+
+        // the local completions must be delivered without waiting for the next tick
+        private boolean _deliverLocalCompletions;
+
+        private boolean _waiting;
+
+        private boolean _stopped;
+
+        public TimerConsumer() {
+            super("ScanApiConsumer");
+        }
+
+        public void run() {
+            long delay = 1;
+            while (waitForTick(delay)) {
+                if (!consumeScanObjects(1)) {
+                    break;
+                }
+                delay = _adaptiveScheduling ? _consumerScheduler.getInterval() :
+                        TIMER_CONSUMER_PERIOD;
+            }
+            // the completions scheduled while ScanAPI was closing are not lost
+            deliverLocalCompletions();
+        }
+
+        /**
+         * run the next tick right away if the consumer is waiting for it
+         */
+        public synchronized void wakeUp() {
+            if (_waiting) {
+                _wakeUp = true;
+                notify();
+            }
+        }
+
+        /**
+         * deliver the local completions on this thread as soon as possible
+         */
+        public synchronized void scheduleLocalCompletions() {
+            _deliverLocalCompletions = true;
+            notify();
+        }
+
+        public synchronized void shutdown() {
+            _stopped = true;
+            notify();
+        }
+
+        /**
+         * wait for the next tick, delivering the local completions meanwhile
+         *
+         * @param delay in milliseconds
+         * @return false once the consumer has been stopped
+         */
+        private boolean waitForTick(long delay) {
+            long tick = System.nanoTime() + delay * 1000000L;
+            while (true) {
+                synchronized (this) {
+                    _waiting = true;
+                    while ((!_stopped) && (!_wakeUp) && (!_deliverLocalCompletions)) {
+                        long remaining = (tick - System.nanoTime() + 999999) / 1000000L;
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            _stopped = true;
+                        }
+                    }
+                    if (_stopped) {
+                        return false;
+                    }
+                    if (!_deliverLocalCompletions) {
+                        _waiting = false;
+                        _wakeUp = false;
+                        return true;
+                    }
+                    _deliverLocalCompletions = false;
+                }
+                deliverLocalCompletions();
+            }
+        }
+    }
+
+    /**
+     * a command has been posted, if the adaptive timer consumer has backed off then run it right
+     * away instead of waiting for its next tick. If the tick is already running it will wait
+     * for the minimum period next since there is now a pending command.
+     */
+    private void wakeUpConsumer() {
+        synchronized (_consumerScheduler) {
+            if ((_consumerScheduler.speedUp()) && (_scanApiConsumer != null)) {
+                _scanApiConsumer.wakeUp();
+            }
+        }
+    }
+
+    /**
+     * stop the consumer, this is called from the consumer itself once ScanAPI is closed
+     */
+    private void stopConsumer() {
+        synchronized (_consumerScheduler) {
+            if (_scanApiConsumer != null) {
+                _scanApiConsumer.shutdown();
+                _scanApiConsumer = null;
+            }
+        }
+        _eventPump = null;
+        Debug.MSG(Debug.kLevelTrace, "Consummer task killed");
+    }
+
+    /**
+     * consumeScanObjects
+     *
+     * wait for the ScanObjects available in ScanAPI and handle them, up to the number of
+     * ScanObjects allowed per tick, then send the next command if any.
+     *
+     * It returns false once ScanAPI has been closed, either because the Terminate event has been
+     * received or because the ScanObject retrieval failed, in which case the consumer must stop.
+     */
+    private boolean consumeScanObjects(long timeout) {
+        _consumerThread = Thread.currentThread();
+        boolean keepConsuming = true;
+        boolean closeScanApi = false;
+        long result = SktScanErrors.ESKT_NOERROR;
+        int handled = 0;
+        while ((handled < _maxScanObjectsPerTick) && (!closeScanApi)) {
+            // only the first wait might block, the following ones just drain
+            // what ScanAPI has already received
+            result = _scanApi.WaitForScanObject(_scanObjReceived, handled == 0 ? timeout : 1);
+            if ((!SktScanErrors.SKTSUCCESS(result)) ||
+                    (result == SktScanErrors.ESKT_WAITTIMEOUT)) {
+                break;
+            }
+            _scanObjReceivedTime = System.nanoTime();
+            _scanObjHandedOver = false;
+            closeScanApi = handleScanObject(_scanObjReceived[0]);
+            // the dispatcher releases the ScanObject once it has been notified
+            if (!_scanObjHandedOver) {
+                _scanApi.ReleaseScanObject(_scanObjReceived[0]);
+            }
+            handled++;
+        }
+        boolean commandsPending;
+        synchronized (_commandContexts) {
+            commandsPending = !_commandContexts.isEmpty();
+        }
+        _consumerScheduler.update(handled, commandsPending);
+        if (SktScanErrors.SKTSUCCESS(result)) {
+            if (!closeScanApi) {
+                // the commands that have timed out leave room for the next ones
+                expireCommands();
+                // if there is a command to send
+                // now might be a good time
+                sendNextCommand();
+            } else {
+                Debug.MSG(Debug.kLevelTrace, "About to close ScanAPI");
+                _scanApi.Close();
+                Debug.MSG(Debug.kLevelTrace, "ScanAPI close, about to kill the consummer task");
+                stopConsumer();
+                keepConsuming = false;
+                prepareNotice(NotificationRing.Notice.kindTerminated);
+                dispatchNotice();
+            }
+        } else {
+            Debug.MSG(Debug.kLevelTrace, "About to close ScanAPI");
+            _scanApi.Close();
+            Debug.MSG(Debug.kLevelTrace, "ScanAPI close, about to kill the consummer task");
+            stopConsumer();
+            keepConsuming = false;
+            prepareNotice(NotificationRing.Notice.kindErrorRetrievingScanObject).result = result;
+            dispatchNotice();
+        }
+        return keepConsuming;
+    }
+
+    /**
+     * expireCommands
+     *
+     * call the callback of the commands in flight whose deadline has passed with the
+     * ERROR_COMMAND_TIMEOUT result, and remove them from the queue so the next commands of
+     * their device can be sent. A completion received later for these commands is ignored.
+     */
+    private void expireCommands() {
+        synchronized (_commandContexts) {
+            _expiredCommands.clear();
+            _commandDeadlines.advance(System.nanoTime(), _expiredCommands);
+            for (int i = _expiredCommands.size() - 1; i >= 0; i--) {
+                CommandContext command = _expiredCommands.get(i);
+                // the command might have been removed with its device in the meantime
+                if ((command.getStatus() == CommandContext.statusNotCompleted) &&
+                        (_commandContexts.remove(command))) {
+                    command.setTimedOut();
+                    _commandMetrics.onTimedOut(command);
+                } else {
+                    _expiredCommands.remove(i);
+                }
+            }
+        }
+        // the callbacks are notified outside of the queue lock
+        // since they might post new commands
+        for (CommandContext command : _expiredCommands) {
+            Debug.MSG(Debug.kLevelWarning, "Command timed out for ID:0x" +
+                    Integer.toHexString(command.getScanObject().getProperty().getID()));
+            prepareNotice(NotificationRing.Notice.kindCommandTimeout).command = command;
+            dispatchNotice();
+        }
+        _expiredCommands.clear();
+    }
+
     /**
-     * set the sound configuration of a particular device for a particular read result
+     * prepareNotice
      *
-     * @param device      to change the actual sound configuration
-     * @param soundAction type of sound to change its configuration
-     * @param soundConfig is an array defining the new sound configuration. The array is
-     *                    a triplet array containing 3 shorts for respectively the frequency (low,
-     *                    medium, high), duration and pause.
+     * start preparing a notification for the application, the caller fills the notice and then
+     * calls dispatchNotice. The notice is locked until it has been dispatched.
      */
-    public void postSetSoundConfigDevice(DeviceInfo device, int soundAction, short[] soundConfig,
-            ICommandContextCallback callback) {
-        char[] newSoundConfig = new char[(soundConfig.length + 2) * 2];
-        // first short is the soundAction (GOOD or BAD)
-        newSoundConfig[0] = 0;
-        newSoundConfig[1] = (char) soundAction;
-        // second short is the number of triplets (a triplet is frequency,duration and pause)
-        newSoundConfig[2] = 0;
-        newSoundConfig[3] = (char) (soundConfig.length / 3);// frequency+duration+pause
-        // takes each triplet received in input parameter and
-        // add them in the char array
-        int index = 4;
-        for (short config : soundConfig) {
-            newSoundConfig[index++] = (char) (config >> 8);
-            newSoundConfig[index++] = (char) (config & 0x00ff);
-        }
-
-        ISktScanObject newScanObj = SktClassFactory.createScanObject();
-        newScanObj.getProperty().setID(ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice);
-        newScanObj.getProperty().setType(ISktScanProperty.types.kSktScanPropTypeArray);
-        newScanObj.getProperty().getArray().setValue(newSoundConfig, newSoundConfig.length);
-        CommandContext command = new CommandContext(false, newScanObj, device.getSktScanDevice(),
-                device, callback);
-        addCommand(command);
+    private NotificationRing.Notice prepareNotice(int kind) {
+        _noticeLock.lock();
+        _notice.clear();
+        _notice.kind = kind;
+        return _notice;
     }
 
-    private void ConvertStringtoCharArray(char[] destination, int destinationOffset,
-            String source) {
-        int count = source.length();
-        int index = 0;
-        for (int i = 0; i < count / 2; i++) {
-            destination[i + destinationOffset] = ConvertToByte(source.substring(index, index + 2));
-            index += 2;
+    /**
+     * dispatchNotice
+     *
+     * deliver the notice prepared by prepareNotice, either right away or through the dispatcher
+     * if there is one. If the notice carries a ScanObject handed over to the dispatcher, the
+     * dispatcher releases it once the notice has been delivered.
+     */
+    private void dispatchNotice() {
+        try {
+            NotificationDispatcher dispatcher = _dispatcher;
+            if (dispatcher == null) {
+                // the consumer releases the ScanObject once the notice has been delivered
+                deliverNotice(_notice);
+            } else {
+                if ((_notice.kind == NotificationRing.Notice.kindTerminated) ||
+                        (_notice.kind == NotificationRing.Notice.kindErrorRetrievingScanObject)) {
+                    // this is the last notice of this dispatcher
+                    _dispatcher = null;
+                    _droppedNotifications += dispatcher.getRing().getDroppedCount();
+                }
+                if (dispatcher.getRing().offer(_notice, _evictedNotice)) {
+                    if (_notice.scanObject != null) {
+                        _scanObjHandedOver = true;
+                    }
+                }
+                if (_evictedNotice.scanObject != null) {
+                    _scanApi.ReleaseScanObject(_evictedNotice.scanObject);
+                }
+                _evictedNotice.clear();
+            }
+        } finally {
+            _notice.clear();
+            _noticeLock.unlock();
         }
     }
 
-    private char ConvertToByte(String substring) {
-        char value = 0;
-        for (int i = 0; i < 2; i++) {
-            value <<= 4;
-            if ((substring.charAt(i) >= '0') && (substring.charAt(i) <= '9')) {
-                value += substring.charAt(i) - '0';
-            } else if ((substring.charAt(i) >= 'A') && (substring.charAt(i) <= 'F')) {
-                value += substring.charAt(i) - 'A';
-                value += 10;
-            } else if ((substring.charAt(i) >= 'a') && (substring.charAt(i) <= 'f')) {
-                value += substring.charAt(i) - 'a';
-                value += 10;
-            }
+    /**
+     * deliverNotice
+     *
+     * call the application notification or command callback matching to the notice
+     */
+    private void deliverNotice(NotificationRing.Notice notice) {
+        switch (notice.kind) {
+            case NotificationRing.Notice.kindCommandComplete:
+                notice.command.doCallback(notice.scanObject);
+                recycleCommand(notice.command);
+                break;
+            case NotificationRing.Notice.kindCommandTimeout:
+                // getResult reports the timeout for the command own ScanObject
+                notice.command.doCallback(notice.command.getScanObject());
+                break;
+            case NotificationRing.Notice.kindCommandCompleteLocally:
+                notice.command.doCallback(notice.command.getScanObject());
+                recycleCommand(notice.command);
+                break;
+            case NotificationRing.Notice.kindDecodedData:
+                _decodedDataTimestamp = notice.receivedTime;
+                _scanLatency.record(ScanLatency.STAGE_NOTIFY, notice.handledTime,
+                        System.nanoTime());
+                if (_notification != null) {
+                    _notification.onDecodedData(notice.deviceInfo, notice.decodedData);
+                }
+                break;
+            case NotificationRing.Notice.kindDeviceArrival:
+                if (_notification != null) {
+                    _notification.onDeviceArrival(notice.result, notice.deviceInfo);
+                }
+                break;
+            case NotificationRing.Notice.kindDeviceRemoval:
+                if (_notification != null) {
+                    _notification.onDeviceRemoval(notice.deviceInfo);
+                }
+                break;
+            case NotificationRing.Notice.kindError:
+                if (_notification != null) {
+                    _notification.onError(notice.result);
+                }
+                break;
+            case NotificationRing.Notice.kindTerminated:
+                if (_notification != null) {
+                    _notification.onScanApiTerminated();
+                }
+                break;
+            case NotificationRing.Notice.kindErrorRetrievingScanObject:
+                if (_notification != null) {
+                    _notification.onErrorRetrievingScanObject(notice.result);
+                    _notification.onScanApiTerminated();
+                }
+                break;
         }
-        return value;
     }
 
-
     /**
-     * ScanAPI Init Complete callback
-     * <p>
-     * this callback is called when ScanAPI is opened. If the open is successful a timer task is
-     * created and used to consume ScanObject from ScanAPI. This timer task will end during ScanAPI
-     * close process once it receives the ScanAPI Terminate event.
+     * NotificationDispatcher
+     *
+     * Thread delivering the notifications handed over by the consumer through the notification
+     * ring. It ends once it has delivered the ScanAPI terminated notification.
      */
-    private ScanAPIInitialization.ICallback _scanApiInitComplete
-            = new ScanAPIInitialization.ICallback() {
+    private class NotificationDispatcher extends Thread {
 
-        public void completed(long result) {
-            if (_notification != null) {
-                _notification.onScanApiInitializeComplete(result);
-            }
-            if (SktScanErrors.SKTSUCCESS(result)) {
-                _scanApiConsumer = new Timer();
-                _scanApiConsumer.schedule(new TimerTask() {
-
-                    public void run() {
-                        boolean closeScanApi = false;
-                        long result = _scanApi.WaitForScanObject(_scanObjReceived, 1);
-                        if (SktScanErrors.SKTSUCCESS(result)) {
-                            if (result != SktScanErrors.ESKT_WAITTIMEOUT) {
-                                closeScanApi = handleScanObject(_scanObjReceived[0]);
-                                _scanApi.ReleaseScanObject(_scanObjReceived[0]);
-                            }
-                            if (!closeScanApi) {
-                                // if there is a command to send
-                                // now might be a good time
-                                sendNextCommand();
-                            } else {
-                                Debug.MSG(Debug.kLevelTrace, "About to close ScanAPI");
-                                _scanApi.Close();
-                                Debug.MSG(Debug.kLevelTrace,
-                                        "ScanAPI close, about to kill the consummer task");
-                                _scanApiConsumer.cancel();
-                                Debug.MSG(Debug.kLevelTrace, "Consummer task killed");
-                                if (_notification != null) {
-                                    _notification.onScanApiTerminated();
-                                }
-                            }
-                        } else {
-
-                            Debug.MSG(Debug.kLevelTrace, "About to close ScanAPI");
-                            _scanApi.Close();
-                            Debug.MSG(Debug.kLevelTrace,
-                                    "ScanAPI close, about to kill the consummer task");
-                            _scanApiConsumer.cancel();
-                            if (_notification != null) {
-                                _notification.onErrorRetrievingScanObject(result);
-                                _notification.onScanApiTerminated();
-                            }
-                        }
-                    }
-                }, 1, 200);
+        private final NotificationRing _ring;
 
-                // set the decoded data confirmation mode of the device
-                // the data confirmation mode can be:
-                // kSktScanDataConfirmationModeDevice: the device acks decoded data locally
-                // kSktScanDataConfirmationModeScanApi: ScanAPI acks the decoded data upon reception
-                // kSktScanDataConfirmationModeApp: this app has to ack the decoded data
-                postSetConfirmationMode(_dataConfirmationMode, null);
+        public NotificationDispatcher(NotificationRing ring) {
+            super("ScanApiNotificationDispatcher");
+            _ring = ring;
+        }
+
+        public NotificationRing getRing() {
+            return _ring;
+        }
+
+        public void run() {
+            NotificationRing.Notice notice = new NotificationRing.Notice();
+            boolean terminated = false;
+            while (!terminated) {
+                _ring.take(notice);
+                deliverNotice(notice);
+                if (notice.scanObject != null) {
+                    _scanApi.ReleaseScanObject(notice.scanObject);
+                }
+                terminated = (notice.kind == NotificationRing.Notice.kindTerminated) ||
+                        (notice.kind == NotificationRing.Notice.kindErrorRetrievingScanObject);
+                notice.clear();
             }
+            Debug.MSG(Debug.kLevelTrace, "Notification dispatcher terminated");
         }
-    };
+    }
 
     /**
      * doGetOrSetComplete
@@ -1028,34 +2099,72 @@ public class ScanApiHelper {
         if (scanObj != null) {
             result = scanObj.getMessage().getResult();
             CommandContext command = (CommandContext) scanObj.getProperty().getContext();
-            Debug.MSG(Debug.kLevelTrace, "Complete event received for Context:" + command + "\n");
+            if (Debug.isEnabled(Debug.kLevelTrace)) {
+                Debug.MSG(Debug.kLevelTrace, "Complete event received for Context:" + command +
+                        "\n");
+            }
+            if ((command != null) && (command.isTimedOut())) {
+                Debug.MSG(Debug.kLevelWarning, "Ignore the completion of a timed out command\n");
+                command = null;
+            }
             if (command != null) {
+                synchronized (_commandContexts) {
+                    _commandDeadlines.cancel(command);
+                }
                 if (!SktScanErrors.SKTSUCCESS(result)) {
-                    if (command.getRetries() >= MAX_RETRIES) {
+                    RetryPolicy retryPolicy = command.getRetryPolicy();
+                    if (retryPolicy == null) {
+                        retryPolicy = _retryPolicy;
+                    }
+                    long delay = retryPolicy.getRetryDelay(result, command.getRetries());
+                    if (delay < 0) {
                         remove = true;
                     } else {
+                        if (Debug.isEnabled(Debug.kLevelTrace)) {
+                            Debug.MSG(Debug.kLevelTrace, "Retry the command in " + delay +
+                                    "ms\n");
+                        }
+                        // the command keeps its place but it is not sent before its delay
+                        command.setNotBefore(System.nanoTime() + delay * 1000000L);
                         remove = false;// don't remove the command for a retry
                         doCallback = false;// don't call the callback for a silent retry
                         result = SktScanErrors.ESKT_NOERROR;
                     }
                 }
 
-                if (doCallback) {
-                    command.doCallback(scanObj);
+                _commandMetrics.onCompleted(command, scanObj.getMessage().getResult(), !remove,
+                        System.nanoTime());
+                if (remove && SktScanErrors.SKTSUCCESS(result)) {
+                    _settingsJournal.record(command);
+                }
+                if (remove) {
+                    updatePropertyCache(command, scanObj, result);
+                }
+                if (remove && SktScanErrors.SKTSUCCESS(result)) {
+                    updateBluetoothAddress(command, scanObj.getProperty());
                 }
 
+                // the command is removed before its callback is called
+                // since it goes back to the pool once it has been delivered
                 if (remove) {
                     synchronized (_commandContexts) {
                         Debug.MSG(Debug.kLevelTrace, "Remove command from the list\n");
-                        _commandContexts.removeElement(command);
+                        _commandContexts.remove(command);
                     }
                 } else {
                     command.setStatus(CommandContext.statusReady);
                 }
+
+                if (doCallback) {
+                    NotificationRing.Notice notice = prepareNotice(
+                            NotificationRing.Notice.kindCommandComplete);
+                    notice.command = command;
+                    notice.scanObject = scanObj;
+                    dispatchNotice();
+                }
             }
-            if (SktScanErrors.SKTSUCCESS(result)) {
-                result = sendNextCommand();
-            }
+            // the next command is sent by the consumer once
+            // all the ScanObjects of this batch have been handled
         }
         return result;
     }
@@ -1063,50 +2172,392 @@ public class ScanApiHelper {
     /**
      * sendNextCommand
      *
-     * This method checks if there is a command ready to be sent at the top of the list.
+     * This method sends the command at the top of each device list if it is ready, so the
+     * commands of the different devices and of ScanAPI are in flight at the same time.
+     *
+     * The ready commands are collected under the queue lock and sent once it is released, so the
+     * commands posted and the completions received are not delayed by ScanAPI. Only one thread
+     * sends the commands at a time. The tests call it directly since they run without consumer.
      */
-    private long sendNextCommand() {
+    long sendNextCommand() {
         long result = SktScanErrors.ESKT_NOERROR;
-
-        synchronized (_commandContexts) {
-            if (!_commandContexts.isEmpty()) {
-                Debug.MSG(Debug.kLevelTrace, "There are some commands to send\n");
-                CommandContext command = (CommandContext) _commandContexts.firstElement();
-                Debug.MSG(Debug.kLevelTrace,
-                        "And this one has status=" + command.getStatus() + " for command: " +
+        boolean failed = false;
+
+        synchronized (_readyCommands) {
+            boolean retry = true;
+            while (retry) {
+                retry = false;
+                synchronized (_commandContexts) {
+                    _readyCommands.clear();
+                    _commandContexts.getReadyCommands(_readyCommands);
+                    long now = System.nanoTime();
+                    for (int i = 0; i < _readyCommands.size(); i++) {
+                        CommandContext command = _readyCommands.get(i);
+                        // the command is in flight before it is sent, so it can't be cancelled
+                        // and its completion might arrive before DoGetOrSetProperty returns
+                        command.setStatus(CommandContext.statusNotCompleted);
+                        command.setSentTime(now);
+                        _commandMetrics.onSent(command, now, _commandContexts.size());
+                        long timeout = getCommandTimeout(
                                 command.getScanObject().getProperty().getID());
-                if (command.getStatus() == CommandContext.statusReady) {
-                    result = command.DoGetOrSetProperty();
-                    if (!SktScanErrors.SKTSUCCESS(result)) {
-                        _commandContexts.removeElement(command);
-                        // case where the command is not supported by the device
-                        // we can ignore it
-                        if (result == SktScanErrors.ESKT_NOTSUPPORTED) {
-                            Debug.MSG(Debug.kLevelWarning, "Remove an unsupported command\n");
-                        }
-                        // case where the device handle is invalid (propably disconnected)
-                        // we can ignore it
-                        else if (result == SktScanErrors.ESKT_INVALIDHANDLE) {
-                            Debug.MSG(Debug.kLevelWarning,
-                                    "Remove a command with an invalid handle\n");
+                        if (timeout > 0) {
+                            _commandDeadlines.schedule(command, now + timeout * 1000000L);
                         }
                     }
                 }
+                for (int i = 0; i < _readyCommands.size(); i++) {
+                    CommandContext command = _readyCommands.get(i);
+                    if (Debug.isEnabled(Debug.kLevelTrace)) {
+                        Debug.MSG(Debug.kLevelTrace, "About to send command: " +
+                                command.getScanObject().getProperty().getID());
+                    }
+                    result = command.DoGetOrSetProperty();
+                    // once sent, the command belongs to its completion
+                    if (SktScanErrors.SKTSUCCESS(result)) {
+                        continue;
+                    }
+                    boolean removed;
+                    synchronized (_commandContexts) {
+                        _commandDeadlines.cancel(command);
+                        // the command might have timed out or been removed with its device
+                        removed = _commandContexts.remove(command);
+                    }
+                    if (!removed) {
+                        continue;
+                    }
+                    _commandMetrics.onDropped(command, result);
+                    // the next command of this device can be sent right away
+                    retry = true;
+                    // case where the command is not supported by the device
+                    // we can ignore it
+                    if (result == SktScanErrors.ESKT_NOTSUPPORTED) {
+                        Debug.MSG(Debug.kLevelWarning, "Remove an unsupported command\n");
+                    }
+                    // case where the device handle is invalid (propably disconnected)
+                    // we can ignore it
+                    else if (result == SktScanErrors.ESKT_INVALIDHANDLE) {
+                        Debug.MSG(Debug.kLevelWarning,
+                                "Remove a command with an invalid handle\n");
+                    }
+                    command.setRejectedResult(result);
+                    synchronized (_localCompletions) {
+                        _localCompletions.add(command);
+                    }
+                    failed = true;
+                }
+                _readyCommands.clear();
             }
         }
+
+        // the callbacks are notified outside of the locks
+        // since they might post new commands
+        if (failed) {
+            flushLocalCompletions();
+        }
         return result;
     }
 
+    /**
+     * flushLocalCompletions
+     *
+     * deliver the callbacks of the commands completed without going to the device, like the
+     * commands that couldn't be sent. They are delivered by the dispatcher if there is one,
+     * otherwise by the timer consumer, the same way as the completions received from ScanAPI.
+     * With the event pump and no dispatcher, or before ScanAPI is open, they are delivered by the
+     * current thread.
+     */
+    private void flushLocalCompletions() {
+        if ((_dispatcher == null) && (Thread.currentThread() != _consumerThread) &&
+                (scheduleLocalCompletions())) {
+            return;
+        }
+        deliverLocalCompletions();
+    }
+
+    /**
+     * schedule the delivery of the local completions on the timer consumer thread
+     *
+     * @return false if there is no timer consumer
+     */
+    private boolean scheduleLocalCompletions() {
+        synchronized (_consumerScheduler) {
+            if (_scanApiConsumer == null) {
+                return false;
+            }
+            _scanApiConsumer.scheduleLocalCompletions();
+            return true;
+        }
+    }
+
+    /**
+     * deliverLocalCompletions
+     *
+     * deliver the local completions, or hand them over to the dispatcher. Only one thread
+     * delivers them at a time, so a callback completing another command locally doesn't recurse:
+     * its completion is delivered once the callback has returned.
+     */
+    private void deliverLocalCompletions() {
+        synchronized (_localCompletions) {
+            if (_deliveringLocalCompletions) {
+                return;
+            }
+            _deliveringLocalCompletions = true;
+        }
+        boolean delivered = false;
+        try {
+            while (true) {
+                CommandContext command;
+                synchronized (_localCompletions) {
+                    if (_localCompletions.isEmpty()) {
+                        _deliveringLocalCompletions = false;
+                        delivered = true;
+                        return;
+                    }
+                    command = _localCompletions.remove(0);
+                }
+                NotificationDispatcher dispatcher = _dispatcher;
+                if ((dispatcher != null) && (Thread.currentThread() != dispatcher)) {
+                    prepareNotice(NotificationRing.Notice.kindCommandCompleteLocally).command =
+                            command;
+                    dispatchNotice();
+                } else {
+                    command.doCallback(command.getScanObject());
+                    recycleCommand(command);
+                }
+            }
+        } finally {
+            if (!delivered) {
+                synchronized (_localCompletions) {
+                    _deliveringLocalCompletions = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * answerFromCache
+     *
+     * complete a device Get if the device has already returned its value and this value is
+     * still fresh, unless the Get must read the device itself. The completion is delivered like
+     * the ones of the commands sent.
+     *
+     * @return true if the command has been completed
+     */
+    private boolean answerFromCache(CommandContext command) {
+        DeviceInfo deviceInfo = command.getDeviceInfo();
+        if ((deviceInfo == null) || (!command.getOperation()) ||
+                (command.getCallback() instanceof IDeviceReadCallback)) {
+            return false;
+        }
+        ISktScanProperty property = command.getScanObject().getProperty();
+        if (getPropertyCacheTtl(property.getID()) <= 0) {
+            return false;
+        }
+        if (!deviceInfo.getPropertyCache().get(property, System.nanoTime())) {
+            _commandMetrics.onCacheMiss(command);
+            return false;
+        }
+        if (Debug.isEnabled(Debug.kLevelTrace)) {
+            Debug.MSG(Debug.kLevelTrace, "Answer a Get from the cache for ID:0x" +
+                    Integer.toHexString(property.getID()));
+        }
+        _commandMetrics.onCacheHit(command);
+        updateBluetoothAddress(command, property);
+        synchronized (_localCompletions) {
+            _localCompletions.add(command);
+        }
+        flushLocalCompletions();
+        return true;
+    }
+
+    /**
+     * updatePropertyCache
+     *
+     * keep the value returned to a device Get, or discard the cached value of a property that
+     * has been set, even if the Set has failed since the device might have changed it anyway.
+     * The value of a Get is not kept while a Set of its property is pending: the Set has
+     * discarded the cached value and the Get has returned the value from before the Set.
+     */
+    private void updatePropertyCache(CommandContext command, ISktScanObject scanObj,
+            long result) {
+        DeviceInfo deviceInfo = command.getDeviceInfo();
+        if (deviceInfo == null) {
+            return;
+        }
+        ISktScanProperty property = command.getScanObject().getProperty();
+        if (!command.getOperation()) {
+            if (deviceInfo.getPropertyCache().invalidate(property)) {
+                savePropertyCache(deviceInfo);
+            }
+        } else if (SktScanErrors.SKTSUCCESS(result)) {
+            long ttl = getPropertyCacheTtl(property.getID());
+            if (ttl > 0) {
+                // the pending Sets discard the cached value under the queue lock
+                synchronized (_commandContexts) {
+                    if (_commandContexts.hasPendingSet(command.getScanDevice(),
+                            property.getID())) {
+                        return;
+                    }
+                    deviceInfo.getPropertyCache().put(property, scanObj.getProperty(), ttl,
+                            System.nanoTime());
+                }
+                savePropertyCache(deviceInfo);
+            }
+        }
+    }
+
+    /**
+     * updateBluetoothAddress
+     *
+     * keep the Bluetooth address returned by a device, so the device can be found from it
+     */
+    private void updateBluetoothAddress(CommandContext command, ISktScanProperty property) {
+        DeviceInfo deviceInfo = command.getDeviceInfo();
+        if ((deviceInfo == null) || (!command.getOperation()) || (property.getID() !=
+                ISktScanProperty.propId.kSktScanPropIdBluetoothAddressDevice)) {
+            return;
+        }
+        char[] address = property.getArray().getValue();
+        if (address != null) {
+            String text = SktScan.helper.formatBluetoothAddress(address, false);
+            deviceInfo.setBtAddress(text);
+            _devices.setBluetoothAddress(deviceInfo, text);
+        }
+    }
+
+    /**
+     * savePropertyCache
+     *
+     * give the cached values of a device to the property store, if there is one and if the
+     * values to save have changed
+     */
+    private void savePropertyCache(DeviceInfo deviceInfo) {
+        IPropertyStore propertyStore = _propertyStore;
+        if ((propertyStore != null) && (deviceInfo.getGuid() != null)) {
+            String properties = deviceInfo.getPropertyCache().saveChanges(System.nanoTime());
+            if (properties != null) {
+                propertyStore.save(deviceInfo.getGuid(), properties);
+            }
+        }
+    }
+
     private void addCommand(CommandContext newCommand) {
+        if (answerFromCache(newCommand)) {
+            return;
+        }
+        ArrayList<CommandContext> refused = null;
+        boolean saturated = false;
+        ISktScanDevice saturatedDevice = null;
+        int size = 0;
+        int capacity = 0;
+        boolean added = false;
+        boolean coalesced = false;
+        DeviceInfo deviceInfo = newCommand.getDeviceInfo();
+        boolean invalidated = false;
         synchronized (_commandContexts) {
+            // the cached value of a property being set is discarded under the queue lock, so a
+            // Get completing meanwhile doesn't put it back and the Gets queued after the Set
+            // read the new value
+            if ((deviceInfo != null) && (!newCommand.getOperation())) {
+                invalidated = deviceInfo.getPropertyCache().invalidate(
+                        newCommand.getScanObject().getProperty());
+            }
             if (newCommand.getScanObject().getProperty().getID() ==
                     ISktScanProperty.propId.kSktScanPropIdAbort) {
                 Debug.MSG(Debug.kLevelTrace,
                         "About to Add a ScanAPI Abort command so remove all previous commands");
-                _commandContexts.removeAllElements();
             }
-            _commandContexts.addElement(newCommand);
-            Debug.MSG(Debug.kLevelTrace, "Add a new command to send");
+            long deadline = 0;
+            while (true) {
+                // the queue removes the previous commands when adding an Abort
+                int status = _commandContexts.add(newCommand);
+                if (status == CommandQueue.addQueued) {
+                    Debug.MSG(Debug.kLevelTrace, "Add a new command to send");
+                    added = true;
+                    break;
+                }
+                if (status == CommandQueue.addCoalesced) {
+                    Debug.MSG(Debug.kLevelTrace, "Coalesce the new command with a pending one");
+                    added = true;
+                    coalesced = true;
+                    break;
+                }
+
+                ISktScanDevice full = status == CommandQueue.addDeviceFull ?
+                        newCommand.getScanDevice() : null;
+                if (_commandContexts.setSaturated(full)) {
+                    saturated = true;
+                    saturatedDevice = full;
+                    size = full != null ? _commandContexts.size(full) :
+                            _commandContexts.size();
+                    capacity = full != null ? _commandContexts.getDeviceCapacity() :
+                            _commandContexts.getCapacity();
+                }
+                if (_queueOverflowPolicy == QUEUE_OVERFLOW_DROP_OLDEST_BACKGROUND) {
+                    CommandContext dropped = _commandContexts.removeOldestBackground(full);
+                    if (dropped != null) {
+                        Debug.MSG(Debug.kLevelWarning,
+                                "Drop the oldest background command, the queue is full");
+                        if (refused == null) {
+                            refused = new ArrayList<>();
+                        }
+                        refused.add(dropped);
+                        continue;
+                    }
+                } else if ((_queueOverflowPolicy == QUEUE_OVERFLOW_BLOCK) &&
+                        (!isConsumerThread())) {
+                    long now = System.nanoTime();
+                    if (deadline == 0) {
+                        deadline = now + _queueBlockTimeout * 1000000L;
+                    }
+                    long remaining = (deadline - now) / 1000000L;
+                    if (remaining > 0) {
+                        _commandContexts.waitForSpace(remaining);
+                        continue;
+                    }
+                }
+                Debug.MSG(Debug.kLevelWarning, "Refuse a new command, the queue is full");
+                if (refused == null) {
+                    refused = new ArrayList<>();
+                }
+                refused.add(newCommand);
+                break;
+            }
+            if (added) {
+                _commandMetrics.onAdded(newCommand, coalesced, _commandContexts.size());
+            }
+        }
+
+        if (invalidated) {
+            savePropertyCache(deviceInfo);
+        }
+
+        // the application is notified outside of the queue lock
+        // since it might post new commands
+        if (saturated && (_notification != null)) {
+            _notification.onCommandQueueSaturated(
+                    saturatedDevice != null ? getDeviceInfo(saturatedDevice) : null, size,
+                    capacity);
+        }
+        if (refused != null) {
+            for (CommandContext command : refused) {
+                _commandMetrics.onRefused(command);
+                command.setRejectedResult(ERROR_QUEUE_FULL);
+                command.doCallback(command.getScanObject());
+                recycleCommand(command);
+            }
+        }
+        if (!added) {
+            return;
+        }
+
+        // the event pump might be blocked in WaitForScanObject and an interactive
+        // command should not wait for the next tick, so send the command right away
+        if ((_eventPump != null) ||
+                (newCommand.getPriority() == CommandContext.priorityInteractive)) {
+            sendNextCommand();
+        } else if (_adaptiveScheduling) {
+            wakeUpConsumer();
         }
     }
 
@@ -1160,14 +2611,28 @@ public class ScanApiHelper {
         if (SktScanErrors.SKTSUCCESS(result)) {
             // add the new device into the list
             newDevice = new DeviceInfo(friendlyName, device, type);
-            synchronized (_devicesList) {
-                _devicesList.addElement(newDevice);
-                _devicesList.removeElement(_noDeviceConnected);
+            newDevice.setGuid(deviceGuid);
+            IPropertyStore propertyStore = _propertyStore;
+            if (propertyStore != null) {
+                String properties = propertyStore.load(deviceGuid);
+                if (properties != null) {
+                    newDevice.getPropertyCache().load(properties, System.nanoTime(),
+                            System.currentTimeMillis());
+                }
+            }
+            _commandMetrics.setDevice(device, deviceGuid, friendlyName);
+            _devices.add(newDevice);
+            DeviceProfile settings = _settingsJournal.onDeviceArrival(device, deviceGuid);
+            if ((settings != null) && _settingsReplay) {
+                Debug.MSG(Debug.kLevelTrace, "Apply again the settings of " + friendlyName);
+                postApplyDeviceProfile(newDevice, settings, false, _settingsReplayCallback);
             }
         }
-        if (_notification != null) {
-            _notification.onDeviceArrival(result, newDevice);
-        }
+        NotificationRing.Notice notice = prepareNotice(
+                NotificationRing.Notice.kindDeviceArrival);
+        notice.result = result;
+        notice.deviceInfo = newDevice;
+        dispatchNotice();
     }
 
     /**
@@ -1178,31 +2643,18 @@ public class ScanApiHelper {
      */
     private void handleDeviceRemoval(ISktScanObject scanObject) {
         ISktScanDevice iDevice = scanObject.getMessage().getDeviceInterface();
-        DeviceInfo deviceFound = null;
-        synchronized (_devicesList) {
-            Enumeration enumerator = _devicesList.elements();
-            while (enumerator.hasMoreElements()) {
-                DeviceInfo device = (DeviceInfo) enumerator.nextElement();
-                if (device.getSktScanDevice() == iDevice) {
-                    deviceFound = device;
-                    break;
-                }
-            }
-
-            // let's notify whatever UI we might have
-            if (deviceFound != null) {
-                removeCommands(deviceFound);
-                _devicesList.removeElement(deviceFound);
-                if (_devicesList.isEmpty()) {
-                    if (_noDeviceConnected.getName().length() > 0) {
-                        _devicesList.addElement(_noDeviceConnected);
-                    }
-                }
-                if (_notification != null) {
-                    _notification.onDeviceRemoval(deviceFound);
-                }
-            }
+        DeviceInfo deviceFound = _devices.remove(iDevice);
+
+        // let's notify whatever UI we might have
+        if (deviceFound != null) {
+            removeCommands(deviceFound);
+            // the property store keeps the values for the next connection
+            deviceFound.getPropertyCache().clear();
+            prepareNotice(NotificationRing.Notice.kindDeviceRemoval).deviceInfo = deviceFound;
+            dispatchNotice();
         }
+        _commandMetrics.removeDevice(iDevice);
+        _settingsJournal.onDeviceRemoval(iDevice);
         iDevice.Close();
 
     }
@@ -1213,20 +2665,28 @@ public class ScanApiHelper {
      * This method handles asynchronous events coming from ScanAPI including decoded data
      */
     private void handleEvent(ISktScanObject scanObject) {
+        long handleTime = System.nanoTime();
         ISktScanEvent event = scanObject.getMessage().getEvent();
         ISktScanDevice iDevice = scanObject.getMessage().getDeviceInterface();
         switch (event.getID()) {
             case ISktScanEvent.id.kSktScanEventError:
-                if (_notification != null) {
-                    _notification.onError(scanObject.getMessage().getResult());
-                }
+                prepareNotice(NotificationRing.Notice.kindError).result =
+                        scanObject.getMessage().getResult();
+                dispatchNotice();
                 break;
             case ISktScanEvent.id.kSktScanEventDecodedData:
                 ISktScanDecodedData decodedData = event.getDataDecodedData();
                 DeviceInfo deviceInfo = getDeviceInfo(iDevice);
-                if (_notification != null) {
-                    _notification.onDecodedData(deviceInfo, decodedData);
-                }
+                _scanLatency.record(ScanLatency.STAGE_HANDLE_EVENT, _scanObjReceivedTime,
+                        handleTime);
+                NotificationRing.Notice notice = prepareNotice(
+                        NotificationRing.Notice.kindDecodedData);
+                notice.deviceInfo = deviceInfo;
+                notice.decodedData = decodedData;
+                notice.scanObject = scanObject;
+                notice.receivedTime = _scanObjReceivedTime;
+                notice.handledTime = handleTime;
+                dispatchNotice();
 
                 // if the Data Confirmation mode is set to App
                 // then confirm Data here
@@ -1251,24 +2711,7 @@ public class ScanApiHelper {
      * otherwise
      */
     private DeviceInfo getDeviceInfo(ISktScanDevice device) {
-        DeviceInfo deviceInfo = null;
-        boolean found = false;
-        if (device != null) {
-            synchronized (_devicesList) {
-                Enumeration enumerator = _devicesList.elements();
-                while (enumerator.hasMoreElements()) {
-                    deviceInfo = (DeviceInfo) enumerator.nextElement();
-                    if (deviceInfo.getSktScanDevice() == device) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    deviceInfo = null;
-                }
-            }
-        }
-        return deviceInfo;
+        return device != null ? _devices.get(device) : null;
     }
 
 
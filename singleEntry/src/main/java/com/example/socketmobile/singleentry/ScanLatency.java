@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+/**
+ * ScanLatency keeps a latency histogram for each hop a decoded data goes through, from the moment
+ * WaitForScanObject returns it until it is displayed in the UI.
+ *
+ * The timestamps are taken with System.nanoTime() which is monotonic, so they can be compared
+ * across threads of the same process.
+ */
+public class ScanLatency {
+
+    /**
+     * from WaitForScanObject returning the ScanObject to ScanApiHelper.handleEvent
+     */
+    public static final int STAGE_HANDLE_EVENT = 0;
+
+    /**
+     * from ScanApiHelper.handleEvent to the onDecodedData notification
+     */
+    public static final int STAGE_NOTIFY = 1;
+
+    /**
+     * from the onDecodedData notification to the NOTIFY_DECODED_DATA broadcast
+     */
+    public static final int STAGE_BROADCAST = 2;
+
+    /**
+     * from the NOTIFY_DECODED_DATA broadcast to the decoded data displayed in the UI
+     */
+    public static final int STAGE_DISPLAY = 3;
+
+    /**
+     * from WaitForScanObject returning the ScanObject to the decoded data displayed in the UI
+     */
+    public static final int STAGE_TOTAL = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "handleEvent", "onDecodedData", "broadcast", "display", "total"
+    };
+
+    private final LatencyHistogram[] _stages;
+
+    public ScanLatency() {
+        _stages = new LatencyHistogram[STAGE_NAMES.length];
+        for (int i = 0; i < _stages.length; i++) {
+            _stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * record the latency of a stage
+     *
+     * @param stage      one of the STAGE_ constants
+     * @param startNanos System.nanoTime() when the stage started
+     * @param endNanos   System.nanoTime() when the stage ended
+     */
+    public void record(int stage, long startNanos, long endNanos) {
+        if ((startNanos != 0) && (endNanos != 0)) {
+            _stages[stage].record((endNanos - startNanos) / 1000);
+        }
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return _stages[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : _stages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * text dump of the latency of all the stages, one stage per line
+     */
+    public String dump() {
+        StringBuilder text = new StringBuilder("Scan latency:");
+        for (int i = 0; i < _stages.length; i++) {
+            text.append("\n  ").append(STAGE_NAMES[i]).append(": ").append(_stages[i]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDevice;
+import com.socketmobile.scanapi.ISktScanProperty;
+import com.socketmobile.scanapi.ISktScanSymbology;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * SettingsJournal remembers the settings successfully set on each device, so they can be applied
+ * again when the device reconnects.
+ *
+ * The settings are kept as a DeviceProfile for each device GUID: the postamble, the decode
+ * action, the timers, the sound configurations and the symbologies. Only the last value of each
+ * setting is kept, so the journal doesn't grow with the number of commands.
+ */
+class SettingsJournal {
+
+    private static final int timerLockOut =
+            ISktScanProperty.values.timers.kSktScanTimerTriggerAutoLockTimeout;
+
+    private static final int timerDisconnected =
+            ISktScanProperty.values.timers.kSktScanTimerPowerOffDisconnected;
+
+    private static final int timerConnected =
+            ISktScanProperty.values.timers.kSktScanTimerPowerOffConnected;
+
+    private final HashMap<String, DeviceProfile> _profiles;
+
+    // profile of each device currently connected
+    private final IdentityHashMap<ISktScanDevice, DeviceProfile> _devices;
+
+    public SettingsJournal() {
+        _profiles = new HashMap<>();
+        _devices = new IdentityHashMap<>();
+    }
+
+    /**
+     * attach a device that has just connected to the settings recorded for its GUID
+     *
+     * @return a copy of the settings recorded the previous times the device was connected, null
+     * if there is none
+     */
+    public synchronized DeviceProfile onDeviceArrival(ISktScanDevice device, String guid) {
+        if (guid == null) {
+            return null;
+        }
+        DeviceProfile profile = _profiles.get(guid);
+        if (profile == null) {
+            profile = new DeviceProfile();
+            _profiles.put(guid, profile);
+        }
+        _devices.put(device, profile);
+        return profile.isEmpty() ? null : new DeviceProfile(profile);
+    }
+
+    public synchronized void onDeviceRemoval(ISktScanDevice device) {
+        _devices.remove(device);
+    }
+
+    /**
+     * record the value of a Set that has completed successfully, the Sets of the other properties
+     * are ignored
+     */
+    public synchronized void record(CommandContext command) {
+        DeviceProfile profile = _devices.get(command.getScanDevice());
+        if ((profile == null) || command.getOperation()) {
+            return;
+        }
+        ISktScanProperty property = command.getScanObject().getProperty();
+        switch (property.getID()) {
+            case ISktScanProperty.propId.kSktScanPropIdPostambleDevice:
+                profile.setPostamble(property.getString().getValue());
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdLocalDecodeActionDevice:
+                profile.setDecodeAction(property.getByte());
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdTimersDevice:
+                recordTimers(profile, property.getArray().getValue(),
+                        property.getArray().getLength());
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdSoundConfigDevice:
+                recordSoundConfig(profile, property.getArray().getValue(),
+                        property.getArray().getLength());
+                break;
+            case ISktScanProperty.propId.kSktScanPropIdSymbologyDevice:
+                int status = property.getSymbology().getStatus();
+                if ((status == ISktScanSymbology.status.kSktScanSymbologyStatusEnable) ||
+                        (status == ISktScanSymbology.status.kSktScanSymbologyStatusDisable)) {
+                    profile.setSymbology(command.getSymbologyId(),
+                            status == ISktScanSymbology.status.kSktScanSymbologyStatusEnable);
+                }
+                break;
+        }
+    }
+
+    /**
+     * forget the settings of all the devices
+     */
+    public synchronized void clear() {
+        _profiles.clear();
+        _devices.clear();
+    }
+
+    /**
+     * the timers Set holds the mask followed by the 3 timers, each value on 2 bytes. The timers
+     * not in the mask keep the value recorded before.
+     */
+    private static void recordTimers(DeviceProfile profile, char[] value, int length) {
+        if (Math.min(length, value.length) < 8) {
+            return;
+        }
+        int mask = DeviceProfile.getWord(value, 0);
+        DeviceProfile.Timers previous = profile.getTimers();
+        if (previous == null) {
+            previous = new DeviceProfile.Timers(0, 0, 0, 0);
+        }
+        profile.setTimers(mask | previous.mask,
+                (mask & timerLockOut) != 0 ? DeviceProfile.getWord(value, 2) :
+                        previous.lockOutTimer,
+                (mask & timerDisconnected) != 0 ? DeviceProfile.getWord(value, 4) :
+                        previous.disconnectedAutoOff,
+                (mask & timerConnected) != 0 ? DeviceProfile.getWord(value, 6) :
+                        previous.connectedAutoOff);
+    }
+
+    /**
+     * the sound config Set holds the sound action, the number of triplets and the triplets, each
+     * value on 2 bytes
+     */
+    private static void recordSoundConfig(DeviceProfile profile, char[] value, int length) {
+        length = Math.min(length, value.length);
+        if (length < 4) {
+            return;
+        }
+        int soundAction = DeviceProfile.getWord(value, 0);
+        int count = DeviceProfile.getWord(value, 2) * 3;
+        if (length < 4 + count * 2) {
+            return;
+        }
+        short[] soundConfig = new short[count];
+        for (int i = 0; i < count; i++) {
+            soundConfig[i] = (short) DeviceProfile.getWord(value, 4 + i * 2);
+        }
+        profile.setSoundConfig(soundAction, soundConfig);
+    }
+}
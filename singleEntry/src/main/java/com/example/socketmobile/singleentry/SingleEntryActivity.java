@@ -57,6 +57,12 @@ public class SingleEntryActivity extends Activity {
 
     private boolean _soundConfigReadyForChange;
 
+    // GUID of the scanner whose sound config is displayed
+    private String _deviceGuid;
+
+    // GUID of the scanner whose decoded data is displayed, the one to confirm
+    private String _decodedDataDeviceGuid;
+
     private int _previousSoftScanStatus = -1;
 
     /**
@@ -97,6 +103,7 @@ public class SingleEntryActivity extends Activity {
                         .getBooleanExtra(SingleEntryApplication.EXTRA_ISSOFTSCAN, false);
                 String text = intent.getStringExtra(SingleEntryApplication.EXTRA_DEVICENAME);
                 _status.setText(text);
+                _deviceGuid = intent.getStringExtra(SingleEntryApplication.EXTRA_DEVICE_GUID);
                 Button btn = (Button) findViewById(R.id.buttonEzPair);
                 if (btn != null) {
                     btn.setVisibility(View.INVISIBLE);
@@ -117,6 +124,7 @@ public class SingleEntryActivity extends Activity {
                 } else {
                     // ask for the sound confirmation config of the connected scanner
                     Intent newIntent = new Intent(SingleEntryApplication.GET_SOUND_CONFIG);
+                    newIntent.putExtra(SingleEntryApplication.EXTRA_DEVICE_GUID, _deviceGuid);
                     _context.sendBroadcast(newIntent);
                 }
             }
@@ -126,6 +134,23 @@ public class SingleEntryActivity extends Activity {
                     .equalsIgnoreCase(SingleEntryApplication.NOTIFY_SCANNER_REMOVAL)) {
                 boolean softScan = intent
                         .getBooleanExtra(SingleEntryApplication.EXTRA_ISSOFTSCAN, false);
+                String guid = intent.getStringExtra(SingleEntryApplication.EXTRA_DEVICE_GUID);
+                if ((guid != null) && guid.equals(_decodedDataDeviceGuid)) {
+                    _decodedDataDeviceGuid = null;
+                }
+                // the other scanners still connected keep the UI as it is
+                if (intent.getIntExtra(SingleEntryApplication.EXTRA_DEVICE_COUNT, 0) > 0) {
+                    if (softScan) {
+                        _triggerBtn.setVisibility(View.INVISIBLE);
+                    }
+                    if ((guid != null) && guid.equals(_deviceGuid)) {
+                        _deviceGuid = null;
+                        _soundConfigReadyForChange = false;
+                        _confirmationSoundConfigSpinner.setVisibility(View.INVISIBLE);
+                    }
+                    return;
+                }
+                _deviceGuid = null;
                 _status.setText("Waiting for scanner...");
                 Button btn = (Button) findViewById(R.id.buttonEzPair);
                 if (btn != null) {
@@ -147,6 +172,17 @@ public class SingleEntryActivity extends Activity {
                     .equalsIgnoreCase(SingleEntryApplication.NOTIFY_DECODED_DATA)) {
                 char[] data = intent.getCharArrayExtra(SingleEntryApplication.EXTRA_DECODEDDATA);
                 _decodedData.setText(new String(data));
+                _decodedDataDeviceGuid = intent
+                        .getStringExtra(SingleEntryApplication.EXTRA_DEVICE_GUID);
+
+                // measure how long the decoded data took to get displayed
+                long displayTime = System.nanoTime();
+                ScanLatency latency = SingleEntryApplication.getApplicationInstance()
+                        .getScanLatency();
+                latency.record(ScanLatency.STAGE_DISPLAY, intent.getLongExtra(
+                        SingleEntryApplication.EXTRA_DECODEDDATA_BROADCAST_TIME, 0), displayTime);
+                latency.record(ScanLatency.STAGE_TOTAL, intent.getLongExtra(
+                        SingleEntryApplication.EXTRA_DECODEDDATA_RECEIVED_TIME, 0), displayTime);
             }
 
             // an error has occurred
@@ -241,6 +277,9 @@ public class SingleEntryActivity extends Activity {
         public void onClick(View v) {
             // send the confirmation beep to the scanner
             Intent intent = new Intent(SingleEntryApplication.SET_DATA_CONFIRMATION);
+            if (_decodedDataDeviceGuid != null) {
+                intent.putExtra(SingleEntryApplication.EXTRA_DEVICE_GUID, _decodedDataDeviceGuid);
+            }
             sendBroadcast(intent);
         }
     };
@@ -260,6 +299,9 @@ public class SingleEntryActivity extends Activity {
                     value = SingleEntryApplication.SOUND_CONFIG_FREQUENCY_MEDIUM;
                 }
                 newIntent.putExtra(SingleEntryApplication.EXTRA_SOUND_CONFIG_FREQUENCY, value);
+                if (_deviceGuid != null) {
+                    newIntent.putExtra(SingleEntryApplication.EXTRA_DEVICE_GUID, _deviceGuid);
+                }
                 sendBroadcast(newIntent);
             }
         }
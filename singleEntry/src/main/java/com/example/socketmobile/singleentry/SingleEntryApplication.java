@@ -21,7 +21,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 
 import com.example.socketmobile.singleentry.ScanApiHelper.ScanApiHelperNotification;
@@ -32,6 +34,7 @@ import com.socketmobile.scanapi.SktScanApiOwnership;
 import com.socketmobile.scanapi.SktScanApiOwnership.Notification;
 import com.socketmobile.scanapi.SktScanErrors;
 
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -216,14 +219,48 @@ public class SingleEntryApplication extends Application {
     public static final String EXTRA_DEVICENAME = SingleEntryApplication.class.getName()
             + ".DeviceName";
 
+    // GUID of the scanner a notification comes from, or a request is for. A request without it
+    // goes to the last scanner that has connected
+    public static final String EXTRA_DEVICE_GUID = SingleEntryApplication.class.getName()
+            + ".DeviceGuid";
+
+    // number of scanners still connected once a scanner has disconnected
+    public static final String EXTRA_DEVICE_COUNT = SingleEntryApplication.class.getName()
+            + ".DeviceCount";
+
     public static final String EXTRA_SYMBOLOGY_NAME = SingleEntryApplication.class.getName()
             + ".SymbologyName";
 
     public static final String EXTRA_DECODEDDATA = SingleEntryApplication.class.getName()
             + ".DecodedData";
 
+    // System.nanoTime() when the decoded data has been retrieved from ScanAPI
+    public static final String EXTRA_DECODEDDATA_RECEIVED_TIME = SingleEntryApplication.class
+            .getName() + ".DecodedDataReceivedTime";
+
+    // System.nanoTime() when the decoded data has been broadcast
+    public static final String EXTRA_DECODEDDATA_BROADCAST_TIME = SingleEntryApplication.class
+            .getName() + ".DecodedDataBroadcastTime";
+
+    // dump the scan latency histograms in the log, i.e.:
+    // adb shell am broadcast -a com.example.socketmobile.singleentry.SingleEntryApplication.DumpScanLatency
+    public static final String DUMP_SCAN_LATENCY = SingleEntryApplication.class.getName()
+            + ".DumpScanLatency";
+
+    public static final String EXTRA_RESET_SCAN_LATENCY = SingleEntryApplication.class.getName()
+            + ".ResetScanLatency";
+
+    public static final String DUMP_COMMAND_METRICS = SingleEntryApplication.class.getName()
+            + ".DumpCommandMetrics";
+
+    public static final String EXTRA_RESET_COMMAND_METRICS =
+            SingleEntryApplication.class.getName() + ".ResetCommandMetrics";
+
     protected static final int defaultConnectedTimeout = 0;
 
+    // preferences file holding the property values returned by each scanner
+    private static final String PROPERTY_CACHE_PREFERENCES = "PropertyCache";
+
     private final int CLOSE_SCAN_API = 1;
 
     private DeviceInfo _softScanDevice;
@@ -269,7 +306,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             String frequency = SOUND_CONFIG_FREQUENCY_HIGH;
             Intent intent;
             if (SktScanErrors.SKTSUCCESS(result)) {
@@ -282,6 +319,8 @@ public class SingleEntryApplication extends Application {
                 }
                 intent = new Intent(GET_SOUND_CONFIG_COMPLETE);
                 intent.putExtra(EXTRA_SOUND_CONFIG_FREQUENCY, frequency);
+                CommandContext context = (CommandContext) scanObj.getProperty().getContext();
+                intent.putExtra(EXTRA_DEVICE_GUID, context.getDeviceInfo().getGuid());
             } else {
                 Debug.MSG(Debug.kLevelError,
                         "Get Sound Config Device Complete returns an error: " + result);
@@ -298,7 +337,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
 
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 Debug.MSG(Debug.kLevelError,
@@ -343,10 +382,15 @@ public class SingleEntryApplication extends Application {
                             _onSetScanApiConfiguration);
                 }
             } else if (intent.getAction().contains(SET_DATA_CONFIRMATION)) {
-                DeviceInfo device = (DeviceInfo) _scanApiHelper.getDevicesList().lastElement();
-                _scanApiHelper.postSetDataConfirmation(device, null);
+                DeviceInfo device = getTargetDevice(intent);
+                if (device != null) {
+                    _scanApiHelper.postSetDataConfirmation(device, null);
+                }
             } else if (intent.getAction().contains(GET_SOUND_CONFIG)) {
-                DeviceInfo device = (DeviceInfo) _scanApiHelper.getDevicesList().lastElement();
+                DeviceInfo device = getTargetDevice(intent);
+                if (device == null) {
+                    return;
+                }
 
                 // ask for the sound config of the scanner
                 _scanApiHelper.postGetSoundConfigDevice(
@@ -354,7 +398,10 @@ public class SingleEntryApplication extends Application {
                         ISktScanProperty.values.soundActionType.kSktScanSoundActionTypeGoodScan,
                         _onGetSoundConfigDevice);
             } else if (intent.getAction().contains(SET_SOUND_CONFIG)) {
-                DeviceInfo device = (DeviceInfo) _scanApiHelper.getDevicesList().lastElement();
+                DeviceInfo device = getTargetDevice(intent);
+                if (device == null) {
+                    return;
+                }
                 short[] soundConfig = new short[3];
                 soundConfig[0] = ISktScanProperty.values.soundFrequency.kSktScanSoundFrequencyHigh;
                 soundConfig[1] = 200;
@@ -373,6 +420,17 @@ public class SingleEntryApplication extends Application {
                         ISktScanProperty.values.soundActionType.kSktScanSoundActionTypeGoodScan,
                         soundConfig,
                         _onSetScanApiConfiguration);
+            } else if (intent.getAction().contains(DUMP_SCAN_LATENCY)) {
+                ScanLatency latency = _scanApiHelper.getScanLatency();
+                Debug.DUMP(latency.dump());
+                if (intent.getBooleanExtra(EXTRA_RESET_SCAN_LATENCY, false)) {
+                    latency.reset();
+                }
+            } else if (intent.getAction().contains(DUMP_COMMAND_METRICS)) {
+                Debug.DUMP(_scanApiHelper.getCommandMetrics().dump());
+                if (intent.getBooleanExtra(EXTRA_RESET_COMMAND_METRICS, false)) {
+                    _scanApiHelper.resetCommandMetrics();
+                }
             }
             // notification about the Bluetooth Radio ON / OFF
             else if (intent.getAction().equalsIgnoreCase(BluetoothAdapter.ACTION_STATE_CHANGED)) {
@@ -422,7 +480,7 @@ public class SingleEntryApplication extends Application {
         @Override
         public void run(ISktScanObject scanObj) {
             Intent intent = new Intent(GET_SOFTSCAN_COMPLETE);
-            intent.putExtra(EXTRA_ERROR, scanObj.getMessage().getResult());
+            intent.putExtra(EXTRA_ERROR, ScanApiHelper.getResult(scanObj));
             intent.putExtra(EXTRA_SOFTSCAN_STATUS, scanObj.getProperty().getByte());
             sendBroadcast(intent);
         }
@@ -433,7 +491,7 @@ public class SingleEntryApplication extends Application {
         @Override
         public void run(ISktScanObject scanObj) {
             Intent intent = new Intent(SET_SOFTSCAN_COMPLETE);
-            intent.putExtra(EXTRA_ERROR, scanObj.getMessage().getResult());
+            intent.putExtra(EXTRA_ERROR, ScanApiHelper.getResult(scanObj));
             sendBroadcast(intent);
         }
     };
@@ -443,7 +501,7 @@ public class SingleEntryApplication extends Application {
         @Override
         public void run(ISktScanObject scanObj) {
             Intent intent = new Intent(SET_TRIGGER_COMPLETE);
-            intent.putExtra(EXTRA_ERROR, scanObj.getMessage().getResult());
+            intent.putExtra(EXTRA_ERROR, ScanApiHelper.getResult(scanObj));
             sendBroadcast(intent);
         }
     };
@@ -453,11 +511,72 @@ public class SingleEntryApplication extends Application {
         @Override
         public void run(ISktScanObject scanObj) {
             Intent intent = new Intent(SET_OVERLAYVIEW_COMPLETE);
-            intent.putExtra(EXTRA_ERROR, scanObj.getMessage().getResult());
+            intent.putExtra(EXTRA_ERROR, ScanApiHelper.getResult(scanObj));
             sendBroadcast(intent);
         }
     };
 
+    /**
+     * retrieve the scanner a request is for, from its EXTRA_DEVICE_GUID or the last scanner that
+     * has connected if the request doesn't specify one
+     *
+     * @return null if the scanner is not connected
+     */
+    private DeviceInfo getTargetDevice(Intent intent) {
+        DeviceInfo device = null;
+        String guid = intent.getStringExtra(EXTRA_DEVICE_GUID);
+        if (guid != null) {
+            device = _scanApiHelper.getDeviceInfoByGuid(guid);
+        } else {
+            List<DeviceInfo> devices = _scanApiHelper.getDevices();
+            if (!devices.isEmpty()) {
+                device = devices.get(devices.size() - 1);
+            }
+        }
+        if (device == null) {
+            Debug.MSG(Debug.kLevelWarning, "No scanner connected for " + intent.getAction());
+        }
+        return device;
+    }
+
+    // writes the property values to the preferences, apply() is not available before API 9
+    // and commit() would block the ScanAPI consumer thread on the disk
+    private Handler _propertyStoreHandler;
+
+    /**
+     * keep the property values returned by the scanners in the preferences, so a scanner
+     * reconnecting after the application has restarted doesn't have to be asked again
+     */
+    private IPropertyStore _propertyStore = new IPropertyStore() {
+
+        @Override
+        public String load(String guid) {
+            return getSharedPreferences(PROPERTY_CACHE_PREFERENCES, Context.MODE_PRIVATE)
+                    .getString(guid, null);
+        }
+
+        @Override
+        public void save(final String guid, final String properties) {
+            _propertyStoreHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    SharedPreferences.Editor editor = getSharedPreferences(
+                            PROPERTY_CACHE_PREFERENCES, Context.MODE_PRIVATE).edit();
+                    if (properties.length() > 0) {
+                        editor.putString(guid, properties);
+                    } else {
+                        editor.remove(guid);
+                    }
+                    if (!editor.commit()) {
+                        Debug.MSG(Debug.kLevelWarning,
+                                "Unable to save the property values of " + guid);
+                    }
+                }
+            });
+        }
+    };
+
 
     @Override
     public void onCreate() {
@@ -474,6 +593,10 @@ public class SingleEntryApplication extends Application {
         // create a ScanAPI Helper
         _scanApiHelper = new ScanApiHelper();
         _scanApiHelper.setNotification(_scanApiHelperNotification);
+        HandlerThread propertyStoreThread = new HandlerThread("PropertyStore");
+        propertyStoreThread.start();
+        _propertyStoreHandler = new Handler(propertyStoreThread.getLooper());
+        _scanApiHelper.setPropertyStore(_propertyStore);
 
         // create a ScanAPI ownership
         _scanApiOwnership = new SktScanApiOwnership(_scanApiOwnershipNotification,
@@ -495,6 +618,12 @@ public class SingleEntryApplication extends Application {
         filter = new IntentFilter(SET_SOUND_CONFIG);
         registerReceiver(_broadcastReceiver, filter);
 
+        filter = new IntentFilter(DUMP_SCAN_LATENCY);
+        registerReceiver(_broadcastReceiver, filter);
+
+        filter = new IntentFilter(DUMP_COMMAND_METRICS);
+        registerReceiver(_broadcastReceiver, filter);
+
         // add this for receiving Bluetooth Radio ON or OFF
         filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(_broadcastReceiver, filter);
@@ -564,6 +693,13 @@ public class SingleEntryApplication extends Application {
         Debug.MSG(Debug.kLevelTrace, "Decrease View count, New view count: " + _viewCount);
     }
 
+    /**
+     * latency histograms of the decoded data, from ScanAPI to the UI
+     */
+    public ScanLatency getScanLatency() {
+        return _scanApiHelper.getScanLatency();
+    }
+
     public void setTraces(boolean bTracesOn) {
         _scanApiHelper.postSetScanAPITraces(bTracesOn);
     }
@@ -758,6 +894,8 @@ public class SingleEntryApplication extends Application {
             if (!_ezPairInProgress) {
                 Intent intent = new Intent(NOTIFY_SCANNER_REMOVAL);
                 intent.putExtra(EXTRA_DEVICENAME, deviceRemoved.getName());
+                intent.putExtra(EXTRA_DEVICE_GUID, deviceRemoved.getGuid());
+                intent.putExtra(EXTRA_DEVICE_COUNT, _scanApiHelper.getDevices().size());
                 if (deviceRemoved.getTypeString().equals("Soft Scanner")) {
                     _softScanDevice = null;
                     intent.putExtra(EXTRA_ISSOFTSCAN, true);
@@ -789,6 +927,7 @@ public class SingleEntryApplication extends Application {
                 if (!_ezPairInProgress) {
                     intent = new Intent(NOTIFY_SCANNER_ARRIVAL);
                     intent.putExtra(EXTRA_DEVICENAME, newDevice.getName());
+                    intent.putExtra(EXTRA_DEVICE_GUID, newDevice.getGuid());
                     if (newDevice.getTypeString().equals("Soft Scanner")) {
                         _softScanDevice = newDevice;
                         intent.putExtra(EXTRA_ISSOFTSCAN, true);
@@ -821,9 +960,20 @@ public class SingleEntryApplication extends Application {
          */
         public void onDecodedData(DeviceInfo deviceInfo,
                 ISktScanDecodedData decodedData) {
+            long notifyTime = System.nanoTime();
             Intent intent = new Intent(NOTIFY_DECODED_DATA);
+            if (deviceInfo != null) {
+                intent.putExtra(EXTRA_DEVICENAME, deviceInfo.getName());
+                intent.putExtra(EXTRA_DEVICE_GUID, deviceInfo.getGuid());
+            }
             intent.putExtra(EXTRA_SYMBOLOGY_NAME, decodedData.getSymbologyName());
             intent.putExtra(EXTRA_DECODEDDATA, decodedData.getData());
+            intent.putExtra(EXTRA_DECODEDDATA_RECEIVED_TIME,
+                    _scanApiHelper.getDecodedDataTimestamp());
+            long broadcastTime = System.nanoTime();
+            intent.putExtra(EXTRA_DECODEDDATA_BROADCAST_TIME, broadcastTime);
+            _scanApiHelper.getScanLatency().record(ScanLatency.STAGE_BROADCAST, notifyTime,
+                    broadcastTime);
             sendBroadcast(intent);
         }
 
@@ -841,13 +991,22 @@ public class SingleEntryApplication extends Application {
             sendBroadcast(intent);
             _lastBroadcastedState = intent;
         }
+
+        /**
+         * the commands are posted faster than the scanner can handle them
+         */
+        public void onCommandQueueSaturated(DeviceInfo deviceInfo, int size, int capacity) {
+            Debug.MSG(Debug.kLevelWarning, "the command queue of " +
+                    (deviceInfo != null ? deviceInfo.getName() : "all the devices") +
+                    " is full: " + size + "/" + capacity);
+        }
     };
 
     protected ICommandContextCallback _onGetScanApiConfiguration = new ICommandContextCallback() {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (SktScanErrors.SKTSUCCESS(result)) {
                 _originalScanAPIConfiguration = scanObj.getProperty().getString().getValue();
                 if (!_originalScanAPIConfiguration.toLowerCase(Locale.US).contains("server")) {
@@ -872,7 +1031,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 String text = "Error " + result +
                         " setting ScanAPI configuration";
@@ -887,7 +1046,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 String text = "Error " + result +
                         " setting Device profile Configuration";
@@ -902,7 +1061,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 String text = "Error " + result +
                         " disconnecting the device";
@@ -916,7 +1075,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 String text = "Error " + result +
                         " setting the device timers";
@@ -930,7 +1089,7 @@ public class SingleEntryApplication extends Application {
 
         @Override
         public void run(ISktScanObject scanObj) {
-            long result = scanObj.getMessage().getResult();
+            long result = ScanApiHelper.getResult(scanObj);
             if (!SktScanErrors.SKTSUCCESS(result)) {
                 String text = "Error " + result +
                         " getting the device timers information";
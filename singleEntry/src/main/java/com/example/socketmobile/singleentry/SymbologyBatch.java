@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.ISktScanSymbology;
+import com.socketmobile.scanapi.SktScanErrors;
+
+import java.util.BitSet;
+
+/**
+ * SymbologyBatch retrieves the status of all the symbologies of a device as one operation.
+ *
+ * All the Get Symbology commands are queued at once, so each one is sent as soon as the previous
+ * one has completed. The status are collected in bitsets and copied in the DeviceInfo once
+ * they have all been received, then the callback is notified once with the aggregated result.
+ * The names go to the symbology name table shared by all the devices. The symbologies whose
+ * Get has failed keep the status they had in the DeviceInfo.
+ *
+ * If the device is removed before the end, the batch is cancelled and the symbology status of
+ * the DeviceInfo are left untouched.
+ */
+class SymbologyBatch implements IDeviceOperation {
+
+    /**
+     * ICallback receives the progress and the completion of a symbology batch
+     */
+    interface ICallback {
+
+        /**
+         * called each time the status of a symbology has been received
+         *
+         * @param completed number of symbologies received so far
+         * @param total     number of symbologies of the batch
+         */
+        void onProgress(DeviceInfo deviceInfo, int completed, int total);
+
+        /**
+         * called once when the batch is over
+         *
+         * @param result ESKT_NOERROR if all the symbologies have been retrieved, the error of the
+         *               last symbology that failed, or ScanApiHelper.ERROR_BATCH_CANCELLED if
+         *               the device has been removed
+         * @param failed number of symbologies that couldn't be retrieved
+         */
+        void onComplete(DeviceInfo deviceInfo, long result, int failed);
+    }
+
+    public static final int firstSymbologyId = ISktScanSymbology.id.kSktScanSymbologyNotSpecified
+            + 1;
+
+    public static final int lastSymbologyId = ISktScanSymbology.id.kSktScanSymbologyLastSymbolID;
+
+    private final DeviceInfo _deviceInfo;
+
+    private final ICallback _callback;
+
+    private final int _total;
+
+    private final BitSet _enabled;
+
+    private final BitSet _notSupported;
+
+    // the symbologies whose status has been received
+    private final BitSet _received;
+
+    // true if a name wasn't in the shared table yet
+    private boolean _namesChanged;
+
+    private int _completed;
+
+    private int _failed;
+
+    private long _result;
+
+    private boolean _finished;
+
+    public SymbologyBatch(DeviceInfo deviceInfo, ICallback callback) {
+        _deviceInfo = deviceInfo;
+        _callback = callback;
+        _total = lastSymbologyId - firstSymbologyId;
+        _enabled = new BitSet(_total);
+        _notSupported = new BitSet(_total);
+        _received = new BitSet(_total);
+        _completed = 0;
+        _failed = 0;
+        _result = SktScanErrors.ESKT_NOERROR;
+        _finished = false;
+    }
+
+    @Override
+    public DeviceInfo getDeviceInfo() {
+        return _deviceInfo;
+    }
+
+    public int getTotal() {
+        return _total;
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return _finished;
+    }
+
+    /**
+     * the callback of each Get Symbology command of the batch
+     */
+    public final ICommandContextCallback onGetSymbology = new ICommandContextCallback() {
+
+        @Override
+        public void run(ISktScanObject scanObj) {
+            onSymbologyReceived(scanObj);
+        }
+    };
+
+    private void onSymbologyReceived(ISktScanObject scanObj) {
+        boolean done;
+        int completed;
+        synchronized (this) {
+            if (_finished) {
+                return;
+            }
+            long result = ScanApiHelper.getResult(scanObj);
+            ISktScanSymbology symbology = scanObj.getProperty().getSymbology();
+            int index = symbology.getID() - firstSymbologyId;
+            if (SktScanErrors.SKTSUCCESS(result) && (index >= 0) && (index < _total)) {
+                if (DeviceInfo.putSymbologyName(index, symbology.getName())) {
+                    _namesChanged = true;
+                }
+                int status = symbology.getStatus();
+                _enabled.set(index,
+                        status == ISktScanSymbology.status.kSktScanSymbologyStatusEnable);
+                _notSupported.set(index,
+                        status == ISktScanSymbology.status.kSktScanSymbologyStatusNotSupported);
+                _received.set(index);
+            } else {
+                _failed++;
+                _result = SktScanErrors.SKTSUCCESS(result) ?
+                        SktScanErrors.ESKT_INVALIDPARAMETER : result;
+            }
+            _completed++;
+            completed = _completed;
+            done = _completed == _total;
+            _finished = done;
+        }
+
+        if (_callback != null) {
+            _callback.onProgress(_deviceInfo, completed, _total);
+        }
+        if (done) {
+            // fill the symbology table in one pass, with a single notification
+            _deviceInfo.beginChanges();
+            _deviceInfo.setSymbologyTable(_enabled, _notSupported, _received);
+            if (_namesChanged) {
+                _deviceInfo.onChanged(DeviceInfo.CHANGED_SYMBOLOGY_NAMES);
+            }
+            _deviceInfo.endChanges();
+            if (_callback != null) {
+                _callback.onComplete(_deviceInfo, _result, _failed);
+            }
+        }
+    }
+
+    /**
+     * stop the batch because its commands have been removed, typically because the device is
+     * gone
+     */
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (_finished) {
+                return;
+            }
+            _finished = true;
+        }
+        if (_callback != null) {
+            _callback.onComplete(_deviceInfo, ScanApiHelper.ERROR_BATCH_CANCELLED,
+                    _total - _completed + _failed);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanApi;
+import com.socketmobile.scanapi.ISktScanDevice;
+import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.ISktScanProperty;
+import com.socketmobile.scanapi.SktClassFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CommandQueueTest runs the command queue the way ScanApiHelper does: the commands are added,
+ * collected and removed under the queue lock by several threads, and sent outside of it.
+ */
+public class CommandQueueTest {
+
+    private static final int deviceCount = 3;
+
+    private static final int producerCount = 4;
+
+    private static final int commandsPerProducer = 5000;
+
+    private ISktScanDevice[] _devices;
+
+    @Before
+    public void setUp() {
+        ISktScanApi scanApi = SktClassFactory.createScanApiInstance();
+        _devices = new ISktScanDevice[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            _devices[i] = SktClassFactory.createDeviceInstance(scanApi);
+        }
+    }
+
+    @Test
+    public void concurrentProducersAndSender() throws Exception {
+        final CommandQueue queue = new CommandQueue();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger producing = new AtomicInteger(producerCount);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+
+                public void run() {
+                    for (int i = 0; i < commandsPerProducer; i++) {
+                        // the trigger commands are never coalesced
+                        CommandContext command = newCommand(false,
+                                ISktScanProperty.propId.kSktScanPropIdTriggerDevice,
+                                _devices[i % deviceCount]);
+                        command.setSymbologyId(producer * commandsPerProducer + i);
+                        synchronized (queue) {
+                            if (queue.add(command) != CommandQueue.addQueued) {
+                                failure.compareAndSet(null, "command not queued");
+                            }
+                        }
+                        added.incrementAndGet();
+                    }
+                    producing.decrementAndGet();
+                }
+            };
+        }
+
+        Thread sender = new Thread() {
+
+            public void run() {
+                ArrayList<CommandContext> ready = new ArrayList<>();
+                // last command sent by each producer to each device
+                HashMap<String, Integer> lastSent = new HashMap<>();
+                while ((producing.get() > 0) || (!isEmpty(queue))) {
+                    synchronized (queue) {
+                        ready.clear();
+                        queue.getReadyCommands(ready);
+                        IdentityHashMap<ISktScanDevice, Boolean> lanes = new IdentityHashMap<>();
+                        for (CommandContext command : ready) {
+                            if (lanes.put(command.getScanDevice(), Boolean.TRUE) != null) {
+                                failure.compareAndSet(null, "two commands in flight");
+                            }
+                            command.setStatus(CommandContext.statusNotCompleted);
+                        }
+                    }
+                    // the commands are sent and completed outside of the queue lock
+                    for (CommandContext command : ready) {
+                        int tag = command.getSymbologyId();
+                        String key = (tag / commandsPerProducer) + "/" +
+                                System.identityHashCode(command.getScanDevice());
+                        Integer previous = lastSent.put(key, tag);
+                        if ((previous != null) && (previous >= tag)) {
+                            failure.compareAndSet(null, "commands sent out of order");
+                        }
+                        synchronized (queue) {
+                            if (!queue.remove(command)) {
+                                failure.compareAndSet(null, "command in flight not found");
+                            }
+                        }
+                        completed.incrementAndGet();
+                    }
+                }
+            }
+        };
+
+        sender.start();
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        sender.join(30000);
+
+        assertFalse("sender still running", sender.isAlive());
+        assertEquals(null, failure.get());
+        assertEquals(producerCount * commandsPerProducer, added.get());
+        assertEquals(added.get(), completed.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void getAfterSetIsNotCoalescedWithGetBeforeSet() {
+        CommandQueue queue = new CommandQueue();
+        int propertyId = ISktScanProperty.propId.kSktScanPropIdFriendlyNameDevice;
+        assertEquals(CommandQueue.addQueued,
+                queue.add(newCommand(true, propertyId, _devices[0])));
+        assertEquals(CommandQueue.addQueued,
+                queue.add(newCommand(false, propertyId, _devices[0])));
+        assertEquals(CommandQueue.addQueued,
+                queue.add(newCommand(true, propertyId, _devices[0])));
+        assertEquals(CommandQueue.addCoalesced,
+                queue.add(newCommand(true, propertyId, _devices[0])));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void removeDeviceKeepsOtherLanes() {
+        CommandQueue queue = new CommandQueue();
+        int propertyId = ISktScanProperty.propId.kSktScanPropIdTriggerDevice;
+        for (int i = 0; i < 4; i++) {
+            queue.add(newCommand(false, propertyId, _devices[0]));
+            queue.add(newCommand(false, propertyId, _devices[1]));
+        }
+        queue.removeDevice(_devices[0]);
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.size(_devices[0]));
+
+        ArrayList<CommandContext> ready = new ArrayList<>();
+        queue.getReadyCommands(ready);
+        assertEquals(1, ready.size());
+        assertTrue(ready.get(0).getScanDevice() == _devices[1]);
+    }
+
+    @Test
+    public void cancelDetachesCoalescedCommand() {
+        CommandQueue queue = new CommandQueue();
+        int propertyId = ISktScanProperty.propId.kSktScanPropIdFriendlyNameDevice;
+        CommandContext first = newCommand(true, propertyId, _devices[0]);
+        CommandContext second = newCommand(true, propertyId, _devices[0],
+                new ICommandContextCallback() {
+
+                    @Override
+                    public void run(ISktScanObject scanObj) {
+                    }
+                });
+        assertEquals(CommandQueue.addQueued, queue.add(first));
+        assertEquals(CommandQueue.addCoalesced, queue.add(second));
+        assertTrue(first.hasCoalesced());
+
+        assertTrue(queue.cancel(second.getCallback()));
+        assertFalse(first.hasCoalesced());
+        assertEquals(1, queue.size());
+        assertFalse(queue.cancel(second.getCallback()));
+    }
+
+    private static boolean isEmpty(CommandQueue queue) {
+        synchronized (queue) {
+            return queue.isEmpty();
+        }
+    }
+
+    private static CommandContext newCommand(boolean getOperation, int propertyId,
+            ISktScanDevice device) {
+        return newCommand(getOperation, propertyId, device, null);
+    }
+
+    private static CommandContext newCommand(boolean getOperation, int propertyId,
+            ISktScanDevice device, ICommandContextCallback callback) {
+        ISktScanObject scanObj = SktClassFactory.createScanObject();
+        scanObj.getProperty().setID(propertyId);
+        scanObj.getProperty().setType(getOperation ? ISktScanProperty.types.kSktScanPropTypeNone :
+                ISktScanProperty.types.kSktScanPropTypeByte);
+        return new CommandContext(getOperation, scanObj, device, null, callback);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2015 Socket Mobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.socketmobile.singleentry;
+
+import com.socketmobile.scanapi.ISktScanDevice;
+import com.socketmobile.scanapi.ISktScanEvent;
+import com.socketmobile.scanapi.ISktScanMsg;
+import com.socketmobile.scanapi.ISktScanObject;
+import com.socketmobile.scanapi.ISktScanProperty;
+import com.socketmobile.scanapi.ISktScanSymbology;
+import com.socketmobile.scanapi.SktScanDeviceType;
+import com.socketmobile.scanapi.SktScanErrors;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ScanApiHelperTest runs ScanApiHelper without ScanAPI being open, with devices that refuse the
+ * commands sent to them, so each command posted completes right away, or devices that accept
+ * them and whose completions are handed to ScanApiHelper by the test as ScanAPI would.
+ */
+public class ScanApiHelperTest {
+
+    /**
+     * a device refusing all the commands, they complete with ESKT_NOTSUPPORTED when sent
+     */
+    private static class RefusingDevice implements ISktScanDevice {
+
+        @Override
+        public long Open(String deviceName) {
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public long Close() {
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public long GetProperty(ISktScanObject scanObj) {
+            return SktScanErrors.ESKT_NOTSUPPORTED;
+        }
+
+        @Override
+        public long SetProperty(ISktScanObject scanObj) {
+            return SktScanErrors.ESKT_NOTSUPPORTED;
+        }
+    }
+
+    /**
+     * a device accepting all the commands, they complete when the test delivers their completion
+     */
+    private static class AcceptingDevice implements ISktScanDevice {
+
+        final ArrayList<ISktScanObject> sent = new ArrayList<>();
+
+        @Override
+        public long Open(String deviceName) {
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public long Close() {
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public long GetProperty(ISktScanObject scanObj) {
+            sent.add(scanObj);
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public long SetProperty(ISktScanObject scanObj) {
+            sent.add(scanObj);
+            return SktScanErrors.ESKT_NOERROR;
+        }
+    }
+
+    /**
+     * the Set Complete ScanAPI would return for a command sent to an AcceptingDevice
+     */
+    private static class SetComplete implements ISktScanObject, ISktScanMsg {
+
+        private final ISktScanProperty _property;
+
+        SetComplete(ISktScanProperty property) {
+            _property = property;
+        }
+
+        @Override
+        public ISktScanMsg getMessage() {
+            return this;
+        }
+
+        @Override
+        public ISktScanProperty getProperty() {
+            return _property;
+        }
+
+        @Override
+        public int getID() {
+            return ISktScanMsg.kSktScanMsgSetComplete;
+        }
+
+        @Override
+        public long getResult() {
+            return SktScanErrors.ESKT_NOERROR;
+        }
+
+        @Override
+        public String getDeviceName() {
+            return null;
+        }
+
+        @Override
+        public String getDeviceGuid() {
+            return null;
+        }
+
+        @Override
+        public long getDeviceType() {
+            return SktScanDeviceType.kSktScanDeviceTypeNone;
+        }
+
+        @Override
+        public ISktScanDevice getDeviceInterface() {
+            return null;
+        }
+
+        @Override
+        public ISktScanEvent getEvent() {
+            return null;
+        }
+    }
+
+    private static class CountingCallback implements ICommandContextCallback {
+
+        int count;
+
+        long result;
+
+        @Override
+        public void run(ISktScanObject scanObj) {
+            count++;
+            result = ScanApiHelper.getResult(scanObj);
+        }
+    }
+
+    @Test
+    public void steadyCommandFlowDoesNotAllocate() {
+        ScanApiHelper scanApiHelper = new ScanApiHelper();
+        DeviceInfo deviceInfo = new DeviceInfo("Scanner", new RefusingDevice(),
+                SktScanDeviceType.kSktScanDeviceTypeNone);
+        CountingCallback callback = new CountingCallback();
+        int level = Debug.getLevel();
+        // the traces are not logged, as in a release build
+        Debug.setLevel(Debug.kLevelWarning);
+        try {
+            // the pools, the queue lanes and the metrics reach their steady state during the
+            // warm up
+            for (int i = 0; i < 1000; i++) {
+                scanApiHelper.postSetDataConfirmation(deviceInfo, callback);
+            }
+            long allocated = scanApiHelper.getAllocatedCommandCount();
+            long bytes = getAllocatedBytes();
+
+            for (int i = 0; i < 10000; i++) {
+                scanApiHelper.postSetDataConfirmation(deviceInfo, callback);
+            }
+
+            bytes = getAllocatedBytes() - bytes;
+            assertEquals(11000, callback.count);
+            assertEquals(SktScanErrors.ESKT_NOTSUPPORTED, callback.result);
+            assertEquals(allocated, scanApiHelper.getAllocatedCommandCount());
+            // even the smallest object allocated per command would take 10000 times 16 bytes,
+            // the little left is the measure itself
+            if (bytes >= 0) {
+                assertTrue(bytes + " bytes allocated by 10000 commands", bytes < 10000);
+            }
+        } finally {
+            Debug.setLevel(level);
+        }
+    }
+
+    @Test
+    public void throughputHoldsAsDeviceCountGrows() {
+        int level = Debug.getLevel();
+        // the traces are not logged, as in a release build
+        Debug.setLevel(Debug.kLevelWarning);
+        try {
+            StringBuilder timings = new StringBuilder();
+            for (int deviceCount : new int[]{1, 2, 10}) {
+                long elapsed = runCommands(deviceCount, 200);
+                timings.append(' ').append(deviceCount).append(" devices: ").append(elapsed)
+                        .append("ns per command");
+            }
+            System.out.println("Command throughput:" + timings);
+        } finally {
+            Debug.setLevel(level);
+        }
+    }
+
+    /**
+     * send the same number of commands to each device, in rounds: each round sends the next
+     * command of every device then completes them all as ScanAPI would, so it stands for one
+     * command round trip over the air
+     *
+     * @return the time spent per command in nanoseconds
+     */
+    private static long runCommands(int deviceCount, int commandsPerDevice) {
+        ScanApiHelper scanApiHelper = new ScanApiHelper();
+        AcceptingDevice[] devices = new AcceptingDevice[deviceCount];
+        DeviceInfo[] deviceInfos = new DeviceInfo[deviceCount];
+        for (int d = 0; d < deviceCount; d++) {
+            devices[d] = new AcceptingDevice();
+            deviceInfos[d] = new DeviceInfo("Scanner " + d, devices[d],
+                    SktScanDeviceType.kSktScanDeviceTypeNone);
+        }
+        CountingCallback callback = new CountingCallback();
+        int total = commandsPerDevice * deviceCount;
+        long start = System.nanoTime();
+        for (int i = 0; i < commandsPerDevice; i++) {
+            for (int d = 0; d < deviceCount; d++) {
+                scanApiHelper.postSetDataConfirmation(deviceInfos[d], callback);
+            }
+        }
+        int rounds = 0;
+        while ((callback.count < total) && (rounds <= total)) {
+            scanApiHelper.sendNextCommand();
+            for (AcceptingDevice device : devices) {
+                for (ISktScanObject scanObj : device.sent) {
+                    scanApiHelper.handleScanObject(new SetComplete(scanObj.getProperty()));
+                }
+                device.sent.clear();
+            }
+            rounds++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(total, callback.count);
+        assertEquals(SktScanErrors.ESKT_NOERROR, callback.result);
+        // the devices are served in parallel, a device doesn't wait for the others
+        assertEquals("rounds with " + deviceCount + " devices", commandsPerDevice, rounds);
+        return elapsed / total;
+    }
+
+    /**
+     * number of bytes allocated by the current thread, -1 if the JVM can't measure it
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocations =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported() &&
+                    allocations.isThreadAllocatedMemoryEnabled()) {
+                return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void profileCompletesWhenItsCommandsCannotBeSent() {
+        ScanApiHelper scanApiHelper = new ScanApiHelper();
+        DeviceInfo deviceInfo = new DeviceInfo("Scanner", new RefusingDevice(),
+                SktScanDeviceType.kSktScanDeviceTypeNone);
+        DeviceProfile profile = new DeviceProfile();
+        profile.setPostamble("\r");
+        profile.setSymbology(ISktScanSymbology.id.kSktScanSymbologyNotSpecified + 1, true);
+        final long[] result = {SktScanErrors.ESKT_NOERROR};
+        final int[] completions = {0};
+
+        scanApiHelper.postApplyDeviceProfile(deviceInfo, profile, false,
+                new DeviceProfile.ICallback() {
+
+                    @Override
+                    public void onComplete(DeviceInfo device, long profileResult,
+                            boolean restored) {
+                        completions[0]++;
+                        result[0] = profileResult;
+                    }
+                });
+        // the capture commands are sent and refused by the device
+        scanApiHelper.sendNextCommand();
+
+        assertEquals(1, completions[0]);
+        assertEquals(SktScanErrors.ESKT_NOTSUPPORTED, result[0]);
+    }
+}